@@ -0,0 +1,18 @@
+package android.os;
+
+/**
+ * Stand-in for Android's SystemClock, so the comm classes run on a plain
+ * JVM. Elapsed time comes from the JVM's monotonic clock.
+ */
+public final class SystemClock {
+    private SystemClock() {
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    public static long uptimeMillis() {
+        return elapsedRealtime();
+    }
+}
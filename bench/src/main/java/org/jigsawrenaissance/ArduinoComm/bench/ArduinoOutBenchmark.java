@@ -0,0 +1,110 @@
+package org.jigsawrenaissance.ArduinoComm.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.jigsawrenaissance.ArduinoComm.ArduinoMessage;
+import org.jigsawrenaissance.ArduinoComm.ArduinoOut;
+import org.jigsawrenaissance.ArduinoComm.Constants;
+import org.jigsawrenaissance.ArduinoComm.SpscPoolQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ArduinoOut's output path: formatting one command, and coalescing a burst
+ * of steering, throttle and turret commands and writing them into a loopback
+ * socket. A thread on the far end of the socket discards what it reads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArduinoOutBenchmark {
+    private ArduinoOut out;
+    private ArduinoMessage command = new ArduinoMessage();
+    private ServerSocketChannel server;
+    private SocketChannel sender;
+    private SocketChannel receiver;
+    private Thread sink;
+    private int value = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        out = new ArduinoOut(new SpscPoolQueue(Constants.OUT_QUEUE_MAX));
+        // As a single board that sends no hello would.
+        out.claimUnclaimed(Constants.DEFAULT_BOARD);
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        sender = SocketChannel.open(server.socket().getLocalSocketAddress());
+        sender.socket().setTcpNoDelay(true);
+        receiver = server.accept();
+        sink = new Thread("sink") {
+            public void run() {
+                ByteBuffer discard = ByteBuffer.allocate(64 * 1024);
+                try {
+                    while (receiver.read(discard) >= 0) {
+                        discard.clear();
+                    }
+                } catch (IOException e) {
+                    // Closed at teardown.
+                }
+            }
+        };
+        sink.setDaemon(true);
+        sink.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        sender.close();
+        receiver.close();
+        server.close();
+    }
+
+    @Benchmark
+    public int formatCommand() {
+        return out.formatCommand(Constants.DEFAULT_BOARD, Constants.COMMAND_THROTTLE, ++value, 0);
+    }
+
+    /** A control loop's worth of commands, two of them superseded, written
+     *  in one go. */
+    @Benchmark
+    public boolean coalesceAndWrite() throws IOException {
+        ++value;
+        command.type = Constants.COMMAND_THROTTLE;
+        command.val1 = value;
+        out.coalesce(command);
+        command.type = Constants.COMMAND_STEERING;
+        out.coalesce(command);
+        command.type = Constants.COMMAND_TURRET_PAN;
+        out.coalesce(command);
+        command.type = Constants.COMMAND_TURRET_TILT;
+        out.coalesce(command);
+        command.type = Constants.COMMAND_THROTTLE;
+        command.val1 = value + 1;
+        out.coalesce(command);
+        command.type = Constants.COMMAND_STEERING;
+        out.coalesce(command);
+        boolean done;
+        do {
+            done = out.writeTo(Constants.DEFAULT_BOARD, sender);
+        } while (!done);
+        return done;
+    }
+}
@@ -0,0 +1,103 @@
+package org.jigsawrenaissance.ArduinoComm.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+import org.jigsawrenaissance.ArduinoComm.Constants;
+import org.jigsawrenaissance.ArduinoComm.FrameScanner;
+
+/**
+ * The canned sensor messages from the mock_sensors sketch, as the board
+ * sends them.
+ */
+public final class MockMessages {
+    public static final String[] MESSAGES = {
+        "$PRSO100,1\r\n",
+        "$PRSO200,10,20,30,40,50\r\n",
+        "$PRSO201,11,21,31,41,51*1\r\n",
+        "$PRSO303,254*31\r\n",
+        "$PRSO400,1*37\r\n",
+        "$PRSO401,0*37\r\n",
+        "$GPGGA,170834,4124.8963,N,08151.6838, W,1,05,1.5,280.2,M,-34.0, M,,*75\r\n",
+    };
+
+    /** The same messages as the sketch sends them in binary framing: type,
+     *  which, then the values. */
+    public static final int[][] VALUES = {
+        {1, 0, 1},
+        {2, 0, 10, 20, 30, 40, 50},
+        {2, 1, 11, 21, 31, 41, 51},
+        {3, 3, 254},
+        {4, 0, 1},
+        {4, 1, 0},
+        {5, 1, 61714000, 414149383, 78, -818613967, 87, 1, 5, 150, 280200, 77, -34000, 77, 0, 0},
+    };
+
+    private MockMessages() {
+    }
+
+    /** All the messages, back to back, repeated the given number of times. */
+    public static byte[] stream(int repeat) {
+        StringBuilder text = new StringBuilder();
+        for (int r = 0; r < repeat; ++r) {
+            for (String m : MESSAGES) {
+                text.append(m);
+            }
+        }
+        return text.toString().getBytes(Charset.forName("ISO-8859-1"));
+    }
+
+    /** Just the one message, repeated. */
+    public static byte[] stream(String message, int repeat) {
+        StringBuilder text = new StringBuilder();
+        for (int r = 0; r < repeat; ++r) {
+            text.append(message);
+        }
+        return text.toString().getBytes(Charset.forName("ISO-8859-1"));
+    }
+
+    /** All the messages as binary frames, back to back, repeated. Each is
+     *  stamped with a board time 10ms after the one before, as the sketch
+     *  does. */
+    public static byte[] binaryStream(int repeat) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int micros = 0;
+        for (int r = 0; r < repeat; ++r) {
+            for (int[] m : VALUES) {
+                appendBinary(out, m, micros);
+                micros += 10000;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void appendBinary(ByteArrayOutputStream out, int[] m, int micros) {
+        int count = m.length - 2;
+        boolean wide = false;
+        for (int i = 2; i < m.length; ++i) {
+            if (m[i] < 0 || m[i] > 0xffff) {
+                wide = true;
+            }
+        }
+        byte[] frame = new byte[3 + count * (wide ? 4 : 2) + 4];
+        int n = 0;
+        frame[n++] = (byte)m[0];
+        frame[n++] = (byte)m[1];
+        frame[n++] = (byte)(count | Constants.BINARY_STAMPED
+                | (wide ? Constants.BINARY_WIDE : 0));
+        for (int i = 2; i < m.length; ++i) {
+            frame[n++] = (byte)m[i];
+            frame[n++] = (byte)(m[i] >> 8);
+            if (wide) {
+                frame[n++] = (byte)(m[i] >> 16);
+                frame[n++] = (byte)(m[i] >> 24);
+            }
+        }
+        for (int shift = 0; shift < 32; shift += 8) {
+            frame[n++] = (byte)(micros >> shift);
+        }
+        out.write(Constants.BINARY_SYNC);
+        out.write(frame, 0, n);
+        out.write(FrameScanner.crc8(frame, 0, n));
+    }
+}
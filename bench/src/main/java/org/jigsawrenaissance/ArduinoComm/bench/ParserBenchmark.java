@@ -0,0 +1,91 @@
+package org.jigsawrenaissance.ArduinoComm.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jigsawrenaissance.ArduinoComm.ArduinoIn;
+import org.jigsawrenaissance.ArduinoComm.ArduinoMessage;
+import org.jigsawrenaissance.ArduinoComm.Constants;
+import org.jigsawrenaissance.ArduinoComm.PoolQueue;
+import org.jigsawrenaissance.ArduinoComm.SpscPoolQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ArduinoIn's input path -- framing, &I unescaping, decoding and queuing --
+ * over the mock_sensors messages, as text or binary frames. Each operation
+ * is one message. The messages are taken off the queue and given back
+ * after each chunk, as the controller would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    /** Messages per chunk. */
+    private static final int REPEAT = 10;
+
+    /** Which input to parse: all the mock messages, just the sensor ones,
+     *  just GPS, or all of them in binary framing. */
+    @Param({"mixed", "prso", "gpgga", "binary"})
+    public String input;
+
+    private byte[] data;
+    private PoolQueue queue;
+    private ArduinoIn in;
+
+    @Setup
+    public void setup() {
+        if ("prso".equals(input)) {
+            data = MockMessages.stream(MockMessages.MESSAGES[1], REPEAT * MockMessages.MESSAGES.length);
+        } else if ("gpgga".equals(input)) {
+            data = MockMessages.stream(MockMessages.MESSAGES[6], REPEAT * MockMessages.MESSAGES.length);
+        } else if ("binary".equals(input)) {
+            data = MockMessages.binaryStream(REPEAT);
+        } else {
+            data = MockMessages.stream(REPEAT);
+        }
+        queue = new SpscPoolQueue(Constants.IN_QUEUE_MAX);
+        in = new ArduinoIn(queue);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REPEAT * 7)
+    public int parse() {
+        in.process(data, 0, data.length);
+        int n = 0;
+        ArduinoMessage m;
+        while ((m = queue.poll()) != null) {
+            n += m.nvals;
+            queue.giveback(m);
+        }
+        return n;
+    }
+
+    /** Same input, fed in small pieces, so frames straddle reads. */
+    @Benchmark
+    @OperationsPerInvocation(REPEAT * 7)
+    public int parseSplit() {
+        for (int i = 0; i < data.length; i += 16) {
+            in.process(data, i, Math.min(16, data.length - i));
+        }
+        int n = 0;
+        ArduinoMessage m;
+        while ((m = queue.poll()) != null) {
+            n += m.nvals;
+            queue.giveback(m);
+        }
+        return n;
+    }
+}
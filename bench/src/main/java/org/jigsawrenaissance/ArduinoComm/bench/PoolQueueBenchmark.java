@@ -0,0 +1,87 @@
+package org.jigsawrenaissance.ArduinoComm.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jigsawrenaissance.ArduinoComm.ArduinoMessage;
+import org.jigsawrenaissance.ArduinoComm.Constants;
+import org.jigsawrenaissance.ArduinoComm.PoolQueue;
+import org.jigsawrenaissance.ArduinoComm.SpscPoolQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * obtain/send/read/giveback round trips through PoolQueue and SpscPoolQueue,
+ * on one thread, and with a sender and a receiver on two threads. The
+ * two-thread case uses tryObtain and poll, so neither side can be left
+ * blocked when an iteration ends.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoolQueueBenchmark {
+    @Param({"PoolQueue", "SpscPoolQueue"})
+    public String impl;
+
+    private PoolQueue queue;
+
+    @Setup
+    public void setup() {
+        if ("SpscPoolQueue".equals(impl)) {
+            queue = new SpscPoolQueue(Constants.IN_QUEUE_MAX);
+        } else {
+            queue = new PoolQueue(Constants.IN_QUEUE_MAX);
+        }
+    }
+
+    /** One full round trip on one thread. */
+    @Benchmark
+    @Group("single")
+    @GroupThreads(1)
+    public ArduinoMessage roundTrip() {
+        ArduinoMessage m = queue.obtain();
+        m.val1 = 1;
+        queue.send(m);
+        m = queue.read();
+        queue.giveback(m);
+        return m;
+    }
+
+    @Benchmark
+    @Group("pair")
+    @GroupThreads(1)
+    public boolean sender() {
+        ArduinoMessage m = queue.tryObtain();
+        if (m == null) {
+            return false;
+        }
+        m.val1 = 1;
+        queue.send(m);
+        return true;
+    }
+
+    @Benchmark
+    @Group("pair")
+    @GroupThreads(1)
+    public boolean receiver() {
+        ArduinoMessage m = queue.poll();
+        if (m == null) {
+            return false;
+        }
+        queue.giveback(m);
+        return true;
+    }
+}
@@ -0,0 +1,66 @@
+package org.jigsawrenaissance.ArduinoComm.bench;
+
+import java.io.File;
+
+import org.jigsawrenaissance.ArduinoComm.ArduinoIn;
+import org.jigsawrenaissance.ArduinoComm.ArduinoMessage;
+import org.jigsawrenaissance.ArduinoComm.CaptureReplay;
+import org.jigsawrenaissance.ArduinoComm.Constants;
+import org.jigsawrenaissance.ArduinoComm.PoolQueue;
+import org.jigsawrenaissance.ArduinoComm.SpscPoolQueue;
+
+/**
+ * Plays a capture file from the phone through ArduinoIn, with a consumer
+ * thread standing in for the controller, and reports throughput, drops and
+ * latency.
+ *
+ *   java -cp target/benchmarks.jar org.jigsawrenaissance.ArduinoComm.bench.Replay \
+ *       capture.bin [speed]
+ *
+ * speed is a multiple of the recorded rate; 0 (the default) replays as fast
+ * as possible.
+ */
+public final class Replay {
+    private Replay() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: Replay <capture file> [speed]");
+            System.exit(2);
+        }
+        double speed = (args.length > 1) ? Double.parseDouble(args[1]) : 0;
+        final PoolQueue queue = new SpscPoolQueue(Constants.IN_QUEUE_MAX);
+        ArduinoIn in = new ArduinoIn(queue);
+        CaptureReplay replay = new CaptureReplay(new File(args[0]), in, speed);
+
+        final long[] consumed = new long[1];
+        Thread consumer = new Thread("consumer") {
+            public void run() {
+                while (true) {
+                    ArduinoMessage m = queue.read();
+                    ++consumed[0];
+                    queue.giveback(m);
+                }
+            }
+        };
+        consumer.setDaemon(true);
+        consumer.start();
+
+        long start = System.nanoTime();
+        replay.run();
+        long elapsed = System.nanoTime() - start;
+        // Let the consumer catch up before we count.
+        Thread.sleep(100);
+
+        System.out.println("chunks " + replay.chunksIn + ", bytes " + replay.bytesIn
+                + ", connects " + replay.connects + ", in " + elapsed / 1000000 + " ms");
+        System.out.println("messages queued " + consumed[0] + ", dropped " + in.getDropCount()
+                + ", " + (long)(replay.bytesIn * 1e9 / elapsed) + " bytes/s");
+        StringBuilder text = new StringBuilder();
+        in.getIngestLatency().describe(text);
+        queue.getWaitLatency().describe(text, "sensorWait");
+        queue.describeCounts(text, "sensorQueue");
+        System.out.print(text);
+    }
+}
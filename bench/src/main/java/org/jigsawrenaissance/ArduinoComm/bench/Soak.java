@@ -0,0 +1,129 @@
+package org.jigsawrenaissance.ArduinoComm.bench;
+
+import org.jigsawrenaissance.ArduinoComm.ArduinoComm;
+import org.jigsawrenaissance.ArduinoComm.ArduinoIn;
+import org.jigsawrenaissance.ArduinoComm.ArduinoMessage;
+import org.jigsawrenaissance.ArduinoComm.ArduinoOut;
+import org.jigsawrenaissance.ArduinoComm.BoardSimulator;
+import org.jigsawrenaissance.ArduinoComm.Constants;
+import org.jigsawrenaissance.ArduinoComm.Metrics;
+import org.jigsawrenaissance.ArduinoComm.PoolQueue;
+
+/**
+ * Runs the whole comm stack -- ArduinoComm, ArduinoIn, ArduinoOut -- against
+ * a BoardSimulator over loopback, with a consumer thread standing in for the
+ * controller that answers every Nth sensor message with a command. Reports
+ * once a second, and in full at the end, with a Metrics snapshot, so the
+ * rate at which the stack saturates can be found by raising the rate until
+ * received falls behind sent, or drops appear.
+ *
+ *   java -cp target/benchmarks.jar org.jigsawrenaissance.ArduinoComm.bench.Soak \
+ *       [seconds] [rate] [burst] [prso:gps] [command every N] [decoders] [sequenced]
+ *
+ * rate is frames per second, 0 for as fast as possible. decoders is the
+ * number of decoder threads, 0 to decode on the I/O thread. sequenced is 1
+ * to have the board ack each write (see ArduinoOut.setSequencing), 0 not
+ * to. The defaults are 10 seconds at 10000 frames/s, bursts of 8, a 6:1
+ * mix, a command for every 10th message, Constants.DECODE_THREADS, and
+ * sequenced.
+ */
+public final class Soak {
+    private Soak() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+        double rate = (args.length > 1) ? Double.parseDouble(args[1]) : 10000;
+        int burst = (args.length > 2) ? Integer.parseInt(args[2]) : 8;
+        String[] mix = ((args.length > 3) ? args[3] : "6:1").split(":");
+        final int commandEvery = (args.length > 4) ? Integer.parseInt(args[4]) : 10;
+        int decoders = (args.length > 5) ? Integer.parseInt(args[5]) : Constants.DECODE_THREADS;
+        boolean sequenced = (args.length > 6) ? Integer.parseInt(args[6]) != 0 : true;
+
+        ArduinoComm comm = new ArduinoComm();
+        ArduinoIn in = new ArduinoIn(comm, decoders);
+        ArduinoOut out = new ArduinoOut(comm);
+        out.setSequencing(sequenced);
+        Metrics metrics = new Metrics();
+        comm.registerMetrics(metrics);
+        // Set up as CommService does.
+        in.setDecoderPriority(Constants.DECODE_THREAD_PRIORITY);
+        in.getQueue().prefill();
+        out.getQueue().prefill();
+        Thread io = new Thread(comm, "ArduinoComm");
+        io.setPriority(Constants.IO_THREAD_PRIORITY);
+        io.start();
+
+        final PoolQueue sensors = in.getQueue();
+        final PoolQueue commands = out.getQueue();
+        final long[] consumed = new long[1];
+        Thread controller = new Thread("controller") {
+            public void run() {
+                int target = 1;
+                while (true) {
+                    ArduinoMessage m = sensors.read();
+                    long sourceNanos = m.frameNanos;
+                    sensors.giveback(m);
+                    if (++consumed[0] % commandEvery != 0) {
+                        continue;
+                    }
+                    // Cycle through the mock sketch's four targets.
+                    m = commands.obtain(target);
+                    if (m != null) {
+                        m.type = target;
+                        m.val1 = (int)(consumed[0] & 0x7f);
+                        m.sourceNanos = sourceNanos;
+                        commands.send(m);
+                    }
+                    target = (target % 4) + 1;
+                }
+            }
+        };
+        controller.setDaemon(true);
+        controller.start();
+
+        BoardSimulator sim = new BoardSimulator();
+        sim.setRate(rate);
+        sim.setBurst(burst);
+        sim.setMix(Integer.parseInt(mix[0]), Integer.parseInt(mix[1]));
+        Thread board = new Thread(sim, "BoardSimulator");
+        long boardStart = System.nanoTime();
+        board.start();
+
+        long start = System.nanoTime();
+        long lastSent = 0;
+        long lastConsumed = 0;
+        for (int s = 1; s <= seconds; ++s) {
+            Thread.sleep(1000);
+            long sent = sim.framesSent;
+            long got = consumed[0];
+            System.out.println(s + "s: sent " + (sent - lastSent) + "/s, received "
+                    + (got - lastConsumed) + "/s, dropped " + in.getDropCount()
+                    + ", commands " + sim.commandsReceived);
+            lastSent = sent;
+            lastConsumed = got;
+        }
+        sim.stop();
+        // Let what's in flight drain before we count.
+        Thread.sleep(200);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        comm.shutdown();
+
+        System.out.println(String.format("sent %d frames (%.0f/s, %.1f MB/s), received %d, dropped %d",
+                sim.framesSent, sim.framesSent / elapsed, sim.bytesSent / elapsed / 1e6,
+                consumed[0], in.getDropCount()));
+        long first = in.getFirstMessageNanos();
+        if (first != 0) {
+            System.out.println(String.format("first message queued %.2f ms after the board started",
+                    (first - boardStart) / 1e6));
+        }
+        System.out.println("commands received by the board " + sim.commandsReceived
+                + ", echoed " + sim.echoesSent + ", acked " + sim.acksSent
+                + ", bytes skipped " + sim.commandSkips);
+        StringBuilder text = new StringBuilder();
+        metrics.snapshot(text);
+        comm.describeQueues(text);
+        System.out.print(text);
+        System.exit(0);
+    }
+}
@@ -26,19 +26,60 @@ Connection* connection;
 #define MAX_MESSAGE_LEN 500
 uint8_t out_buffer[MAX_MESSAGE_LEN] = {0};
 
-// Incoming transmissions consist of triples of bytes where the first byte will
-// be nonzero, the second may be nonzero, and the third will be zero. We expect
-// transmissions may contain multiple triples, and that triples may be split
-// across transmissions.
+// Incoming transmissions consist of triples of bytes where the first byte is
+// the target, the second the value, and the third the crc8 of those two. We
+// expect transmissions may contain multiple triples, and that triples may be
+// split across transmissions.
 #define COMMAND_MESSAGE_LEN 3
-// Since we may have commands split across transmissions, we may have up to
-// COMMAND_MESSAGE_LEN - 1 leftover bytes. We don't need to save up the trailing
-// zero byte, but we do need to know if a command is split before its trailing
-// zero so we can clip it off the next transmission. So we only have to remember
-// whether there are two or one outstanding bytes, and if there are two (i.e. we
-// got the type but not the value), we need to save the type for next time.
-uint8_t leftover = 0;
-int num_leftovers = 0;
+// The phone starts each transmission with COMMAND_MESSAGE_LEN zero bytes,
+// which are a triple to target 0 -- no such target, so we ignore it. If a
+// byte gets lost, we'll take three bytes that straddle two commands, and
+// their third byte is the check of neither, so we drop the first byte and
+// try again from the next. That usually puts us back in step by the next
+// transmission, but about one time in 256 a straddling triple passes the
+// check by chance, and we act on a command that wasn't sent. Must match
+// COMMAND_RESYNC_LEN in Constants.
+//
+// Since we may have commands split across transmissions, we keep the bytes
+// of a partial command here until the rest arrives.
+uint8_t command[COMMAND_MESSAGE_LEN] = {0};
+int command_len = 0;
+// Number of bytes dropped because they didn't line up with a command.
+unsigned long command_skips = 0;
+
+// The phone may ask for sensor data in binary rather than text, by sending
+// a command to this target. These must match COMMAND_FRAMING etc. in
+// Constants.
+#define COMMAND_FRAMING 255
+#define FRAMING_TEXT 0
+#define FRAMING_BINARY 1
+// The phone may number its transmissions, with a command to this target
+// after the others, whose value is the sequence number. Once we've acted on
+// the commands before it, we ack with $ACK,<seq>. We ack every one we get,
+// as the phone takes any it doesn't get an ack for as lost. Must match
+// COMMAND_SEQUENCE in Constants.
+#define COMMAND_SEQUENCE 254
+// A binary frame is:
+//   <sync> <type> <which> <count> <value>... [<micros>] <crc>
+// where count is the number of values, plus BINARY_WIDE if they're 32-bit
+// (else 16-bit unsigned), plus BINARY_STAMPED if micros() when the reading
+// was taken follows them (32-bit), values are little-endian, and crc is the
+// CRC-8 (polynomial 0x07) of everything after the sync byte. See
+// FrameScanner. The phone converts micros to its own clock, so it knows
+// when the reading was taken, not just when it arrived.
+#define BINARY_SYNC 0xA5
+#define BINARY_WIDE 0x80
+#define BINARY_STAMPED 0x40
+// Until the phone asks, send text, so an old app still understands us.
+uint8_t framing = FRAMING_TEXT;
+
+// The phone may have several boards connected. Each says which it is, and
+// which command targets it handles, in a hello when it connects:
+//   $PRID,<board>,<target>,<target>,...
+// Board ids run from 0 to MAX_BOARDS - 1 in Constants. A board that doesn't
+// send a hello is taken to be board 0, and gets the targets nobody claims.
+// The mock claims all four.
+#define HELLO "$PRID,0,1,2,3,4\r\n"
 
 // Each fake sensor message is paired with a pause to follow the message.
 // The pauses allow for approximate testing of timestamping on the receiving end.
@@ -63,6 +104,26 @@ struct message_and_pause mock_messages[] = {
   {"$GPGGA,170834,4124.8963,N,08151.6838, W,1,05,1.5,280.2,M,-34.0, M,,*75\r\n", 30},
 };
 int num_mock_messages = sizeof(mock_messages) / sizeof(message_and_pause);
+
+// The same messages as values, for binary framing. These are what the phone
+// would decode from the text above, e.g. 4124.8963,N is 414149383 (1e-7
+// degrees) and N is 78.
+struct mock_values {
+  uint8_t type;
+  uint8_t which;
+  uint8_t count;
+  long values[14];
+};
+
+struct mock_values mock_binary[] = {
+  {1, 0, 1, {1}},
+  {2, 0, 5, {10, 20, 30, 40, 50}},
+  {2, 1, 5, {11, 21, 31, 41, 51}},
+  {3, 3, 1, {254}},
+  {4, 0, 1, {1}},
+  {4, 1, 1, {0}},
+  {5, 1, 14, {61714000, 414149383, 78, -818613967, 87, 1, 5, 150, 280200, 77, -34000, 77, 0, 0}},
+};
 int which_message = 0;
 
 void debugmsg(char* msg, boolean ln) {
@@ -93,6 +154,51 @@ void debugmsg(int num) {
   debugmsg(num, true);
 }
 
+// CRC-8 with polynomial x^8 + x^2 + x + 1, as used by binary frames.
+uint8_t crc8(uint8_t* data, int length) {
+  uint8_t crc = 0;
+  for (int i = 0; i < length; ++i) {
+    crc ^= data[i];
+    for (int bit = 0; bit < 8; ++bit) {
+      crc = (crc & 0x80) ? (crc << 1) ^ 0x07 : crc << 1;
+    }
+  }
+  return crc;
+}
+
+// Send one set of values as a binary frame, stamped with the time. If any
+// value doesn't fit in 16 unsigned bits, they're all sent as 32 bits.
+void sendBinary(struct mock_values* m) {
+  unsigned long now = micros();
+  boolean wide = false;
+  for (int i = 0; i < m->count; ++i) {
+    if (m->values[i] < 0 || m->values[i] > 0xFFFF) {
+      wide = true;
+    }
+  }
+  int num = 0;
+  out_buffer[num++] = BINARY_SYNC;
+  out_buffer[num++] = m->type;
+  out_buffer[num++] = m->which;
+  out_buffer[num++] = m->count | BINARY_STAMPED | (wide ? BINARY_WIDE : 0);
+  for (int i = 0; i < m->count; ++i) {
+    unsigned long v = (unsigned long)m->values[i];
+    out_buffer[num++] = v & 0xFF;
+    out_buffer[num++] = (v >> 8) & 0xFF;
+    if (wide) {
+      out_buffer[num++] = (v >> 16) & 0xFF;
+      out_buffer[num++] = (v >> 24) & 0xFF;
+    }
+  }
+  out_buffer[num++] = now & 0xFF;
+  out_buffer[num++] = (now >> 8) & 0xFF;
+  out_buffer[num++] = (now >> 16) & 0xFF;
+  out_buffer[num++] = (now >> 24) & 0xFF;
+  out_buffer[num] = crc8(out_buffer + 1, num - 1);
+  ++num;
+  connection->write(num, out_buffer);
+}
+
 void adbEventHandler(Connection*, adb_eventType, uint16_t, uint8_t*);
 
 void setup()
@@ -114,6 +220,17 @@ void processCommand(uint8_t target, uint8_t value) {
   debugmsg(target);
   debugmsg("Value = ", false);
   debugmsg(value);
+  if (target == COMMAND_FRAMING) {
+    // Takes effect from the next message we send.
+    framing = value;
+    return;
+  }
+  if (target == COMMAND_SEQUENCE) {
+    // The ack goes as text, whatever the framing -- the phone takes both.
+    int num = sprintf((char*)out_buffer, "$ACK,%d\r\n", value);
+    connection->write(num, out_buffer);
+    return;
+  }
   if (ECHO) {
     // @Debug: send back to the phone.
     int num = sprintf((char*)out_buffer, "$ECHO,%d,%d\r\n", target, value);
@@ -125,73 +242,40 @@ void processCommand(uint8_t target, uint8_t value) {
 // and second byte (value) off for processing. Processors should not take a
 // lot of time for their work, and should *not block*.
 //
-// In case incoming transmissions split in the middle of commands, we save
-// the tail of the previous transmission and prepend it to the next
-// transmission.
-//
-// @ToDo: Find out if this actually happens. Find out if transmissions can
-// drop chars. Should we send a resync command periodically, with a distinct
-// pattern?
+// Bytes are taken one at a time into command, so a command split across
+// transmissions is put back together, and if we're out of step (see
+// COMMAND_MESSAGE_LEN), we find our place again a byte at a time.
 //
 // The real code will call the appropriate processor -- the mock optionally
 // logs to the serial monitor and sends the message back to the phone.
 void bufferIncomingData(uint16_t length, uint8_t* data) {
-  int start = 0;
-  
   // Sanity check.
   if (length <= 0) {
     debugmsg("Got empty incoming transmission.");
     return;
   }
   
-  // Assemble the first command out of our leftover plus bytes from the new
-  // transmission.
-  if (num_leftovers == 1) {
-    // It's just the trailing zero left -- we already processed the command.
-    start = 1;
-  } else if (num_leftovers == 2) {
-    processCommand(leftover, data[0]);
-    if (length == 1) {
-      // We got enough to process the command, but we still have a leftover
-      // trailing zero, yet to come.
-      num_leftovers = 1;
-      return;
+  for (uint16_t i = 0; i < length; ++i) {
+    command[command_len++] = data[i];
+    if (command_len < COMMAND_MESSAGE_LEN) {
+      continue;
     }
-    // We got both the value and trailing zero -- skip over them.
-    start = 2;
-  }
-  
-  // Subsequent commands are from the new transmission.
-  int i = start;
-  for (; i < length; i = i + COMMAND_MESSAGE_LEN) {
-    processCommand(data[i], data[i+1]);
-  }
-  
-  // Put any leftover in our stash. If we have no leftover, i is exactly
-  // length.
-  if (i == length) {
-    num_leftovers = 0;
-    return;
-  }
-  // i got incremented before the loop test, so if we subtract the increment
-  // from i, then the difference between that and length is the number of
-  // leftovers.
-  num_leftovers = length - (i - COMMAND_MESSAGE_LEN);
-  if (num_leftovers == 1) {
-    // If we have one leftover, it's just zero. We can go ahead and process
-    // the command.
-    processCommand(data[length-2], data[length-1]);
-    debugmsg("Had one leftover");
-    return;
-  } else if (num_leftovers == 2) {
-    // If we have two leftovers, we need to save the last data byte.
-    leftover = data[length-1];
-    debugmsg("Had two leftovers");
-    return;
+    if (command[COMMAND_MESSAGE_LEN - 1] == crc8(command, COMMAND_MESSAGE_LEN - 1)) {
+      if (command[0] != 0) {
+        processCommand(command[0], command[1]);
+      }
+      // Else it's the resync marker.
+      command_len = 0;
+      continue;
+    }
+    // Out of step. Drop the first byte and look again from the next.
+    debugmsg("Command out of step, skipping a byte");
+    ++command_skips;
+    for (int k = 1; k < COMMAND_MESSAGE_LEN; ++k) {
+      command[k - 1] = command[k];
+    }
+    command_len = COMMAND_MESSAGE_LEN - 1;
   }
-  // If we had any other number of leftovers, something is wrong.
-  debugmsg("Unexpected number of leftovers: ", false);
-  debugmsg(num_leftovers);
 }
 
 // This is called when ADB::poll() finds incoming data on USB.  See calls to
@@ -214,12 +298,18 @@ void adbEventHandler(Connection* connection,
     bufferIncomingData(length, data);
   } else if (event == ADB_CONNECT) {
     debugmsg("Got connect event");
+    // A new phone connection hasn't asked for binary yet.
+    framing = FRAMING_TEXT;
   } else if (event == ADB_CONNECTION_FAILED) {
     debugmsg("Got connection failed event");
   } else if (event == ADB_CONNECTION_OPEN) {
     debugmsg("Got connection open event");
+    framing = FRAMING_TEXT;
+    // Say who we are before sending anything else.
+    connection->writeString(HELLO);
   } else if (event == ADB_CONNECTION_CLOSE) {
     debugmsg("Got connection close event");
+    framing = FRAMING_TEXT;
   }
 }
 
@@ -243,11 +333,18 @@ void loop()
   // Poll ADB for incoming commands and other events.
   ADB::poll();
   
-  // Send the next mock sensor message.
-  char* message = mock_messages[which_message].message;
-  debugmsg("About to send: ", false);
-  debugmsg(message);
-  connection->writeString(message);
+  // Send the next mock sensor message, in whichever framing the phone
+  // asked for.
+  if (framing == FRAMING_BINARY) {
+    debugmsg("About to send binary: ", false);
+    debugmsg(mock_binary[which_message].type);
+    sendBinary(&mock_binary[which_message]);
+  } else {
+    char* message = mock_messages[which_message].message;
+    debugmsg("About to send: ", false);
+    debugmsg(message);
+    connection->writeString(message);
+  }
   
   // Pause for the specified time.
   delay(mock_messages[which_message].pause);
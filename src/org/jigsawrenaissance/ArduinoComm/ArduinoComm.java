@@ -1,70 +1,143 @@
 package org.jigsawrenaissance.ArduinoComm;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.util.Log;
 
 /**
  * Holds common elements for communication with the Arduino, in particular, the
  * server socket.
- * 
+ *
+ * All socket I/O is done on one thread, which runs this. The sockets are in
+ * non-blocking mode, and a Selector tells us when the board has connected,
+ * when it has sent data, and when the socket can take more commands. Input
+ * is handed to ArduinoIn to parse, and ArduinoOut's command queue is drained
+ * and written from here, so neither needs a thread of its own. Nothing here
+ * blocks the thread that constructs us, so it's fine to do that on the UI
+ * thread.
+ *
+ * Several boards may be connected at once, up to MAX_BOARDS, e.g. one for
+ * the sonar and bumpers and one for the GPS. Each connection is a Board,
+ * with its own frame scanner. All their input goes through ArduinoIn into
+ * the one sensor queue, and each board gets the commands for the targets it
+ * owns. Since nothing here blocks, a board that is slow to send or to take
+ * its commands doesn't hold up the others. A connection is identified by
+ * its first frame (see Board), and we don't send it commands until then.
+ *
+ * If a board resets or the link drops, we close the connection and accept
+ * the next one on the same port. ArduinoIn and ArduinoOut, their queues, and
+ * the messages in them carry on as they were -- only the partial frame and
+ * any half-written commands are discarded -- so recovery takes as long as the
+ * board takes to reconnect. A new connection that identifies as a board we
+ * think we still have replaces the old one, as that means the board has
+ * started over. We also give up on a connection that has been silent for
+ * INPUT_TIMEOUT_MS, since a reset doesn't always get as far as closing the
+ * socket.
+ *
+ * If given a CaptureFile, we record everything read from and written to the
+ * board, for later replay by CaptureReplay.
+ *
  * @author Pat Tressel
  */
-public class ArduinoComm {
+public class ArduinoComm implements Runnable {
     public static final String TAG = "ArduinoComm";
-    
-    // The input and output workers share one socket, which is owned by the
-    // class. We only expose the input and output streams to them.
+
+    // The input and output workers share the sockets, which are owned by the
+    // class. They only see them as channels, while we're calling them.
     // @ToDo: This should be a singleton. Provide a factory method.
     private final Object socketLock = new Object();
-    private Socket socket;
-    private ServerSocket server;
-    private InputStream input;
-    private OutputStream output;
-    
+    private Selector selector;
+    private ServerSocketChannel server;
+    private SelectionKey serverKey;
+    /** Connections to the boards, by slot, or null where there's none. */
+    private final Board[] boards = new Board[Constants.MAX_BOARDS];
+    /** Number of entries in boards that are in use. Written only on the I/O
+     *  thread; read on others by isConnected and Metrics. */
+    private volatile int numBoards = 0;
+
+    /** Where to record the traffic, or null. */
+    private CaptureFile capture;
+
+    private ArduinoIn in;
+    private ArduinoOut out;
+
+    /** Set when a wakeup is already on its way to the selector, so a burst
+     *  of commands costs only one. */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    private volatile boolean running = true;
+    /** The thread running run(), once it has started. */
+    private volatile Thread ioThread;
+
+    /** Number of times a board has connected. */
+    private volatile int connects = 0;
+    /** Number of times we've lost the connection. */
+    private volatile int disconnects = 0;
+
+    /** Wakes the selector when the controller sends a command. */
+    private final PoolQueue.SendListener commandListener = new PoolQueue.SendListener() {
+        public void onSend(PoolQueue queue) {
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+    };
+
     private void initSocket() throws IOException {
         synchronized (socketLock) {
             if (server == null) {
                 try {
                     Log.d(TAG, "About to open server socket.");
-                    server = new ServerSocket(Constants.SERVER_PORT);
+                    selector = Selector.open();
+                    server = ServerSocketChannel.open();
+                    server.configureBlocking(false);
+                    // A connection from an earlier ArduinoComm in this
+                    // process may still be winding down on the port.
+                    server.socket().setReuseAddress(true);
+                    server.socket().bind(new InetSocketAddress(Constants.SERVER_PORT));
                 } catch (IOException e) {
                     Log.e(TAG, "Failed to create ServerSocket", e);
                     throw e;
                 }
-                Log.d(TAG, "About to call accept on server socket.");
-                socket = server.accept();
-                Log.d(TAG, "After accept.");
-                input = socket.getInputStream();
-                output = socket.getOutputStream();
+                // We'll accept on our own thread, once it's running.
+                serverKey = server.register(selector, SelectionKey.OP_ACCEPT);
             } else {
                 Log.d(TAG, "Server socket already open.");
             }
         }
     }
-    
+
     public ArduinoComm() throws IOException {
         initSocket();
     }
-    
-    // Note after the constructor completes, the input and output streams
-    // should be available, thus the ArduinoComm instance methods can
-    // assume they exist, and don't need to check for null.
-    
-    /** Used by ArduinoIn to get the input stream. */
-    protected InputStream getInputStream() {
-        return input;
-    }
-    
-    /** Used by ArduinoOut to get the output stream. */
-    protected OutputStream getOutputStream() {
-        return output;
-    }
-    
+
+    /** Used by ArduinoIn to register for input. */
+    protected void setArduinoIn(ArduinoIn in) {
+        this.in = in;
+    }
+
+    /** Used by ArduinoOut to register for output. */
+    protected void setArduinoOut(ArduinoOut out) {
+        this.out = out;
+        out.getQueue().setSendListener(commandListener);
+    }
+
+    /**
+     * Record all traffic with the boards to the given file, which we close
+     * when we shut down. Call this before starting our thread. Recording
+     * starts with the next connection.
+     */
+    public void setCapture(CaptureFile capture) {
+        this.capture = capture;
+    }
+
     /** Helper that converts two bytes to an int. */
     protected int composeInt(int hi, int lo) {
         int val = hi & 0xff;
@@ -72,4 +145,326 @@ public class ArduinoComm {
         val += lo & 0xff;
         return val;
     }
+
+    /** True if any board is currently connected. */
+    public boolean isConnected() {
+        return numBoards > 0;
+    }
+
+    /** Number of boards currently connected. */
+    public int getBoardCount() {
+        return numBoards;
+    }
+
+    /** Number of times a board has connected, including the first. */
+    public int getConnectCount() {
+        return connects;
+    }
+
+    /** Number of times the connection has been lost. */
+    public int getDisconnectCount() {
+        return disconnects;
+    }
+
+    /**
+     * Add the latency percentiles for each stage to text: ingest (frame
+     * arrival to sensor queue), sensor queue wait, command queue wait, flush
+     * (controller's send to socket write) and reaction (sensor frame to
+     * command write).
+     */
+    public void describeLatency(StringBuilder text) {
+        if (in != null) {
+            in.getIngestLatency().describe(text);
+            in.getQueue().getWaitLatency().describe(text, "sensorWait");
+        }
+        if (out != null) {
+            out.getQueue().getWaitLatency().describe(text, "commandWait");
+            out.getFlushLatency().describe(text);
+            out.getReactionLatency().describe(text);
+        }
+    }
+
+    /**
+     * Register the comm stack's health measures with metrics: ours, and
+     * ArduinoIn's and ArduinoOut's, with their queues. Call this after
+     * they've been constructed.
+     */
+    public void registerMetrics(Metrics metrics) {
+        metrics.add("comm.boards", new Metrics.Gauge() {
+            public long read() { return numBoards; }
+        });
+        metrics.add("comm.connects", new Metrics.Gauge() {
+            public long read() { return connects; }
+        });
+        metrics.add("comm.disconnects", new Metrics.Gauge() {
+            public long read() { return disconnects; }
+        });
+        if (in != null) {
+            in.registerMetrics(metrics);
+        }
+        if (out != null) {
+            out.registerMetrics(metrics);
+        }
+    }
+
+    /** Add the drops and stalls of each queue, by type, to text. */
+    public void describeQueues(StringBuilder text) {
+        if (in != null) {
+            in.getQueue().describeCounts(text, "sensorQueue");
+        }
+        if (out != null) {
+            out.getQueue().describeCounts(text, "commandQueue");
+        }
+    }
+
+    /** Stop the I/O thread, and close the sockets. If the thread is
+     *  running, this waits, up to SHUTDOWN_TIMEOUT_MS, for it to close
+     *  them, so the port is free for the next ArduinoComm. */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+        Thread thread = ioThread;
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(Constants.SHUTDOWN_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The I/O loop. Start this on its own thread after ArduinoIn and
+     * ArduinoOut have been constructed.
+     */
+    public void run() {
+        ioThread = Thread.currentThread();
+        Log.d(TAG, "I/O thread started.");
+        try {
+            while (running) {
+                // While connected, wake up now and then to check the links
+                // are alive, and in time for ArduinoOut's next timer.
+                long timeout = (numBoards > 0) ? Constants.INPUT_TIMEOUT_MS : 0;
+                if (out != null) {
+                    long wait = out.nanosToNextTimer(System.nanoTime());
+                    if (wait >= 0) {
+                        // Round up, and don't ask for 0, which is forever.
+                        long ms = Math.max(1, (wait + 999999) / 1000000);
+                        timeout = (timeout == 0) ? ms : Math.min(timeout, ms);
+                    }
+                }
+                selector.select(timeout);
+                wakeupPending.set(false);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key == serverKey) {
+                        if (key.isAcceptable()) {
+                            accept();
+                        }
+                        continue;
+                    }
+                    Board board = (Board)key.attachment();
+                    if (key.isReadable()) {
+                        readInput(board);
+                    }
+                    if (board.key != null && key.isValid() && key.isWritable()) {
+                        writeOutput(board);
+                    }
+                }
+
+                long now = System.nanoTime();
+                for (int slot = 0; slot < boards.length; ++slot) {
+                    Board board = boards[slot];
+                    if (board != null && now - board.lastInputNanos
+                            > Constants.INPUT_TIMEOUT_MS * 1000000L) {
+                        Log.d(TAG, "No input from board " + board.id + ", dropping connection.");
+                        disconnect(board);
+                    }
+                }
+
+                // Pick up any commands the controller has sent, and any
+                // ArduinoOut's timers add. If a board isn't connected, its
+                // commands wait here, coalesced.
+                if (out != null) {
+                    out.drainQueue();
+                    out.runTimers(now);
+                    for (int slot = 0; slot < boards.length; ++slot) {
+                        Board board = boards[slot];
+                        if (board != null && board.isIdentified() && out.hasOutput(board.id)) {
+                            writeOutput(board);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Selector failed", e);
+        } finally {
+            closeAll();
+            if (in != null) {
+                in.stopDecoders();
+            }
+        }
+        Log.d(TAG, "I/O thread exiting.");
+    }
+
+    private void accept() throws IOException {
+        Log.d(TAG, "About to call accept on server socket.");
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        Log.d(TAG, "After accept.");
+        int slot = 0;
+        while (slot < boards.length && boards[slot] != null) {
+            ++slot;
+        }
+        if (slot == boards.length) {
+            Log.d(TAG, "Already have " + boards.length + " boards, refusing connection.");
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        // Commands are tiny, and we want them sent right away.
+        channel.socket().setTcpNoDelay(true);
+        Board board = new Board(in, slot);
+        board.socket = channel;
+        board.key = channel.register(selector, SelectionKey.OP_READ, board);
+        if (capture != null) {
+            capture.record(CaptureFile.KIND_CONNECT, slot, null, 0, 0);
+            board.io = capture.tap(channel, slot);
+        } else {
+            board.io = channel;
+        }
+        board.lastInputNanos = System.nanoTime();
+        boards[slot] = board;
+        ++numBoards;
+        ++connects;
+        // We don't know which board this is until it sends something, so
+        // its commands wait until then -- see onIdentified.
+    }
+
+    /**
+     * Called by ArduinoIn, on our thread, when a board has said which board
+     * it is. Any older connection with the same id is dropped, as the board
+     * must have started over. The board takes ownership of the targets in
+     * its hello, or if it sent none, of all targets no other board has
+     * claimed. Then it gets our current commands, which will go out at the
+     * end of this pass.
+     *
+     * @param hello the board's hello, or null if it didn't send one
+     */
+    protected void onIdentified(Board board, ArduinoMessage hello) {
+        Log.d(TAG, "Board " + board.id + " is on connection " + board.slot);
+        for (int slot = 0; slot < boards.length; ++slot) {
+            Board other = boards[slot];
+            if (other != null && other != board && other.id == board.id) {
+                Log.d(TAG, "New connection replaces the old one.");
+                disconnect(other);
+            }
+        }
+        if (out != null) {
+            if (hello != null) {
+                for (int i = 2; i <= hello.nvals; ++i) {
+                    out.claim(board.id, hello.getValue(i) & 0xff);
+                }
+            } else {
+                out.claimUnclaimed(board.id);
+            }
+            out.onConnect(board.id);
+        }
+    }
+
+    /** Called by ArduinoIn, on our thread, when board acks sequenced
+     *  commands up to seq. */
+    protected void onAck(Board board, int seq) {
+        if (out != null) {
+            out.onAck(board.id, seq);
+        }
+    }
+
+    /** Close the connection to a board, and get ready for the next one.
+     *  The server socket stays open, and is still accepting. */
+    private void disconnect(Board board) {
+        if (boards[board.slot] != board) {
+            return;
+        }
+        board.key.cancel();
+        try {
+            board.socket.close();
+        } catch (IOException e) {
+            Log.d(TAG, "close() threw IOException", e);
+        }
+        boards[board.slot] = null;
+        board.key = null;
+        --numBoards;
+        ++disconnects;
+        if (capture != null) {
+            capture.record(CaptureFile.KIND_DISCONNECT, board.slot, null, 0, 0);
+        }
+        // Whatever was in flight belongs to the old connection. The partial
+        // frame goes with the Board.
+        if (out != null && board.isIdentified()) {
+            out.reset(board.id);
+        }
+    }
+
+    private void readInput(Board board) {
+        int n = 0;
+        try {
+            // Read until we've emptied the socket, rather than go back
+            // through select for each chunk.
+            do {
+                n = in.readFrom(board, board.io);
+            } while (n == Constants.READ_CHUNK_LEN);
+        } catch (IOException e) {
+            Log.d(TAG, "read() threw IOException", e);
+            n = -1;
+        }
+        if (n < 0) {
+            Log.d(TAG, "End of input, waiting for board " + board.id + " to reconnect.");
+            disconnect(board);
+        } else {
+            board.lastInputNanos = System.nanoTime();
+        }
+    }
+
+    private void writeOutput(Board board) {
+        if (!board.isIdentified()) {
+            return;
+        }
+        try {
+            boolean done = out.writeTo(board.id, board.io);
+            // If the socket is full, ask to be told when it can take more.
+            board.key.interestOps(done ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            Log.d(TAG, "write() threw IOException", e);
+            disconnect(board);
+        }
+    }
+
+    private void closeAll() {
+        synchronized (socketLock) {
+            try {
+                for (int slot = 0; slot < boards.length; ++slot) {
+                    if (boards[slot] != null) {
+                        boards[slot].socket.close();
+                    }
+                }
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                Log.d(TAG, "close() threw IOException", e);
+            }
+            if (capture != null) {
+                capture.close();
+            }
+        }
+    }
 }
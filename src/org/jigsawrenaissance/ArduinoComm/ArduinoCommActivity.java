@@ -1,69 +1,65 @@
 package org.jigsawrenaissance.ArduinoComm;
 
-import java.io.IOException;
-
 import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 
 public class ArduinoCommActivity extends Activity {
     public static final String TAG = "ArduinoCommActivity";
+    
+    /** The comm stack, while we're bound to it, else null. */
+    private CommService service = null;
+    
+    private final ServiceConnection connection = new ServiceConnection() {
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = ((CommService.LocalBinder)binder).getService();
+            Log.d(TAG, "Attached to " + CommService.TAG);
+        }
+        
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+        }
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         Log.d(TAG, "In onCreate");
         setContentView(R.layout.main);
+        // The comm stack lives in CommService, so it's set up once, and
+        // keeps running across pauses. This is a no-op if it's already
+        // running.
+        startService(new Intent(this, CommService.class));
     }
     
     @Override
     public void onResume() {
         super.onResume();
         Log.d(TAG, "In onResume");
-        
-        // @ToDo: Move this to a Service.
-        
-        // @Debug: Comment out ArduinoComm.
-        ArduinoComm comm = null;
-        try {
-            comm = new ArduinoComm();
-        } catch (IOException e) {
-            Log.e(TAG, "Could not set up communication with the Arduino", e);
-        }
-        
-     // @Debug: For MockInputStream, comment out creating ArduinoOut.
-        ArduinoOut out = new ArduinoOut(comm);
-        Log.d(TAG, "ArduinoOut create succeeded");
-        
-        // @Debug: For testing with MockInputStream, comment out the first
-        // line ArduinoIn(comm), and uncomment the following with ArduinoIn().
-        ArduinoIn in = new ArduinoIn(comm);
-        //ArduinoIn in = new ArduinoIn();
-        Log.d(TAG, "ArduinoIn create succeeded");
-        
-        // @Debug: For testing with the mock_sensors sketch, include
-        // MockController.
-        MockController mockController = new MockController(in.getQueue(), out.getQueue());
-        
-        Thread controlThread = new Thread(null, mockController, MockController.TAG);
-        Log.d(TAG, "About to start mock controller.");
-        controlThread.start();
-        
-        // @Debug: For MockInputStream, comment out starting ArduinoOut.
-        Thread outThread = new Thread(null, out, ArduinoOut.TAG);
-        Log.d(TAG, "About to start output worker thread");
-        outThread.start();
-        
-        Thread inThread = new Thread(null, in, ArduinoIn.TAG);
-        Log.d(TAG, "About to start input worker thread");
-        inThread.start();
+        bindService(new Intent(this, CommService.class), connection, BIND_AUTO_CREATE);
     }
     
     @Override
     public void onPause() {
         super.onPause();
         Log.d(TAG, "In onPause");
-        // @ToDo: onPause is moot when this moves to a service, but in
-        // general, should we close the socket if we're exiting?
+        // Just let go of the service -- it carries on without us.
+        unbindService(connection);
+        service = null;
+    }
+    
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        Log.d(TAG, "In onDestroy");
+        // If we're going away for good, rather than e.g. being rotated,
+        // stop the comm stack too, which closes the sockets.
+        if (isFinishing()) {
+            stopService(new Intent(this, CommService.class));
+        }
     }
-}
\ No newline at end of file
+}
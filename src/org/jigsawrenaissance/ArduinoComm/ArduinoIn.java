@@ -1,33 +1,44 @@
 package org.jigsawrenaissance.ArduinoComm;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
 
-import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * Read from the Arduino over USB using ADB as the transmission protocol.
  * Parse sensor messages, put their contents in ArduinoMessage objects, and
- * queue them up for the control module.
+ * queue them up for the control module. FrameScanner splits the input into
+ * messages, and MessageDecoder fills in the ArduinoMessage fields according
+ * to the formats listed in MessageFormat. If the board sends binary frames,
+ * FrameScanner hands us their values directly, with no text to decode.
+ * 
+ * Input from all the boards comes through here, on ArduinoComm's thread,
+ * and goes into the one queue, with the board id in each message. Each
+ * board has its own FrameScanner, in its Board. The boards' hellos are
+ * handled here, and passed on to ArduinoComm.
+ * 
+ * Decoding, which for a long GPS sentence takes a while, can be done on
+ * threads of their own, so the I/O thread gets back to the socket sooner.
+ * Then the I/O thread only finds the frames, checks them, and works out
+ * when each reading was taken, and copies each frame into the FrameRing of
+ * a DecodeStage. Each sensor's frames all go to the same stage, so they're
+ * queued in order.
  * 
  * Format of the messages is based on NMEA:
  * http://www.gpsinformation.org/dale/nmea.htm
  * http://aprs.gids.nl/nmea/
  * 
- * @ToDo: The incoming messages have checksums, but there is an uncertainty
- * in their definition. The checksum calculator here:
- * http://www.hhhh.org/wiml/proj/nmeaxor.html
- * does not seem to include spaces in the count. The reason this is important
- * is that we don't construct the messages from the external GPS, and the
- * description of NMEA GGA message here:
- * http://aprs.gids.nl/nmea/#gga
- * shows blanks in the example of message data. If the GPS will be computing
- * its own checksum, then we need to abide by whatever its computation is.
+ * The checksum is the XOR of every byte between the '$' and the '*',
+ * blanks included, as NMEA 0183 defines it. (Some online calculators, e.g.
+ * http://www.hhhh.org/wiml/proj/nmeaxor.html, leave out blanks. The GGA
+ * example at http://aprs.gids.nl/nmea/#gga, which the mock sketch sends,
+ * can't tell the two apart -- its two blanks cancel in the XOR.) The
+ * decoder skips blanks around field values.
  * 
  * @author Pat Tressel
  */
-public class ArduinoIn implements Runnable {
+public class ArduinoIn implements FrameScanner.FrameListener {
     public static final String TAG = "ArduinoIn";
     
     /** Our message transfer queue -- we queue up the ArduinoMessages we
@@ -35,203 +46,420 @@ public class ArduinoIn implements Runnable {
      *  that also read sensor data from other sources. */
     private PoolQueue sensorQueue;
     
+    /** Newest reading from each sensor, kept beside the queue for control
+     *  code that only wants current values. */
+    private SensorSnapshot snapshot = new SensorSnapshot(Constants.SNAPSHOT_SLOTS);
+    
     /** Our communication helper. */
     private ArduinoComm comm;
     
-    /** Buffer ArduinoComm's input stream. */
-    private BufferedInputStream input;
-    // @Debug:
-    //private MockInputStream input;
+    /** The board whose input we're scanning. */
+    private Board current;
+    
+    /** Board for input supplied through process(buf, offset, count). */
+    private final Board local;
+    
+    /** Where we decode a board's hello. */
+    private final ArduinoMessage hello = new ArduinoMessage();
+    /** Where we decode a board's acks. */
+    private final ArduinoMessage ack = new ArduinoMessage();
+    
+    /** Checks frames and finds their formats, and decodes hellos. The
+     *  stages decode everything else. */
+    private MessageDecoder decoder = new MessageDecoder();
+    
+    /** Filters for sensors whose readings the controller only wants
+     *  smoothed or thinned out. */
+    private final SensorFilters filters = new SensorFilters();
+    
+    /** What turns frames into messages. Frames from the same sensor always
+     *  go to the same stage. */
+    private final DecodeStage[] stages;
+    
+    /** The stages' threads, if they have them. */
+    private final Thread[] decodeThreads;
+    
+    /** Time from the start of a frame arriving to its message being queued,
+     *  by sensor type. */
+    private final LatencyStats ingestLatency = new LatencyStats("ingest");
+    
+    /** Count of frames not passed on because their stage's ring was full.
+     *  Written only on the I/O thread. */
+    private volatile int ringDrops = 0;
+    
+    // What has come in, for Metrics.
+    private final StripedCounter bytesIn = new StripedCounter();
+    private final StripedCounter framesIn = new StripedCounter();
+    /** Binary frames with a bad CRC or count, from all boards' scanners. */
+    private final StripedCounter crcErrors = new StripedCounter();
+    /** Text frames dropped for running past MAX_MESSAGE_LEN. */
+    private final StripedCounter overruns = new StripedCounter();
+    /** Text frames abandoned because a '$' came before their CRLF. */
+    private final StripedCounter resyncs = new StripedCounter();
+    /** Commands the boards have echoed back. */
+    private final StripedCounter echoes = new StripedCounter();
+    // The current board's scanner counts before the chunk, so count() can
+    // add what the chunk did.
+    private int crcBefore = 0;
+    private int overrunsBefore = 0;
+    private int resyncsBefore = 0;
+    
+    // @Debug: To test without a board, record its traffic with CaptureFile,
+    // and play it back through an ArduinoIn(PoolQueue) with CaptureReplay.
+    
+    /** This is the real constructor. ArduinoComm reads from the socket on
+     *  its own thread, and hands us the data via readFrom. Frames are
+     *  decoded on that thread too. */
+    public ArduinoIn(ArduinoComm comm) {
+        this(comm, 0);
+    }
     
     /**
-     * @Debug:
-     * For debugging the queuing, parsing, threading, mock out the board I/O.
-     * Repeat a canned script of "messages". The message texts are stored as
-     * String, which, being Unicode, is not necessarily representative of the
-     * character encoding that we'll receive from the board -- that depends on
-     * how InputStream transforms the packet data.
-     * 
-     * This is not a true mock of InputStream, i.e. does not subclass it. One
-     * must comment out the use of ArduinoComm and substitute this. It provides
-     * only the one InputStream method that is used here -- read().
+     * As above, but with decoders threads of their own to decode frames,
+     * so ArduinoComm's thread only splits the input into frames, and gets
+     * back to the socket sooner. With 0, frames are decoded on ArduinoComm's
+     * thread.
      */
-    /*
-    public class MockInputStream {
-        public final byte[][] messages = {
-            "$PRSO100,1\r\n".getBytes(),
-            "$PRSO200,10,20,30,40,50\r\n".getBytes(),
-            "$PRSO201,11,21,31,41,51*1\r\n".getBytes(),
-            "$PRSO303,254*31\r\n".getBytes(),
-            "$PRSO400,1*37\r\n".getBytes(),
-            "$PRSO401,0*37\r\n".getBytes(),
-            "$GPGGA,170834,4124.8963,N,08151.6838, W,1,05,1.5,280.2,M,-34.0, M,,*75".getBytes(),
-        };
-        
-        // These point to the next byte to return.
-        private int i = 0;  // index into messages array
-        private int j = 0;  // index within the current message
-        
-        public int read() {
-            // This doesn't handle empty messages.
-            byte b = messages[i][j];
-            if (j == (messages[i].length - 1)) {
-                // End of that message.
-                j = 0;
-                i = (i + 1) % messages.length;
-            } else {
-                ++j;
+    public ArduinoIn(ArduinoComm comm, int decoders) {
+        this.comm = comm;
+        local = new Board(this, 0);
+        // With more than one stage, several threads send.
+        sensorQueue = (decoders > 1)
+                ? new PoolQueue(Constants.IN_QUEUE_MAX, Constants.IN_QUEUE_URGENT)
+                : new SpscPoolQueue(Constants.IN_QUEUE_MAX, Constants.IN_QUEUE_URGENT);
+        // A bumper hit shouldn't wait behind a queue of GPS fixes.
+        sensorQueue.setLane(Constants.SENSOR_BUMPER, Constants.LANE_URGENT);
+        // We can't wait on the I/O thread, and a stage that waited would
+        // back up its ring. The snapshot keeps the newest reading of
+        // anything dropped.
+        sensorQueue.setPolicy(Constants.POLICY_DROP_NEWEST);
+        if (decoders > 0) {
+            stages = new DecodeStage[decoders];
+            decodeThreads = new Thread[decoders];
+            for (int i = 0; i < decoders; ++i) {
+                stages[i] = new DecodeStage(sensorQueue, snapshot, ingestLatency, filters,
+                        new FrameRing(Constants.FRAME_RING_SLOTS));
+                decodeThreads[i] = new Thread(null, stages[i], DecodeStage.TAG + i);
+                decodeThreads[i].setDaemon(true);
+                decodeThreads[i].start();
             }
-            return b;
+        } else {
+            stages = new DecodeStage[] {
+                new DecodeStage(sensorQueue, snapshot, ingestLatency, filters, null) };
+            decodeThreads = new Thread[0];
         }
+        comm.setArduinoIn(this);
     }
-    */
     
-    /** This is the real constructor. */
-    public ArduinoIn(ArduinoComm comm) {
-        this.comm = comm;
-        input = new BufferedInputStream(comm.getInputStream());
-        sensorQueue = new PoolQueue(Constants.IN_QUEUE_MAX);
+    /** Use this without a board, e.g. to benchmark the parser. Input is
+     *  supplied through process(), and decoded on the caller's thread. */
+    public ArduinoIn(PoolQueue sensorQueue) {
+        local = new Board(this, 0);
+        this.sensorQueue = sensorQueue;
+        stages = new DecodeStage[] {
+            new DecodeStage(sensorQueue, snapshot, ingestLatency, filters, null) };
+        decodeThreads = new Thread[0];
     }
     
-    /** @Debug:
-     *  This constructor uses the mock. Requires changing the type of input
-     *  and changing the instantiation in ArduinoCommActivity. */
-    /*
-    public ArduinoIn() {
-        input = new MockInputStream();
-        sensorQueue = new PoolQueue(Constants.IN_QUEUE_MAX);
+    /**
+     * Filter a sensor's readings before they're queued, passing on one
+     * message every so many readings in place of the raw ones. The
+     * snapshot still gets every reading. Each board's sensor is filtered on
+     * its own. Call this before input starts to arrive. See
+     * SensorFilters.set.
+     */
+    public void setFilter(int type, int which, int kind, int window, int every) {
+        filters.set(type, which, kind, window, every);
+    }
+    
+    /** As setFilter(type, which, kind, window, every), for one board only. */
+    public void setFilter(int board, int type, int which, int kind, int window, int every) {
+        filters.set(board, type, which, kind, window, every);
+    }
+    
+    /** Set the priority of the decoder threads, if any. */
+    public void setDecoderPriority(int priority) {
+        for (int i = 0; i < decodeThreads.length; ++i) {
+            decodeThreads[i].setPriority(priority);
+        }
+    }
+    
+    /** When the first message was queued for the controller, by
+     *  System.nanoTime(), or 0 if none has been yet. */
+    public long getFirstMessageNanos() {
+        long first = 0;
+        for (int i = 0; i < stages.length; ++i) {
+            long nanos = stages[i].firstNanos;
+            if (nanos != 0 && (first == 0 || nanos < first)) {
+                first = nanos;
+            }
+        }
+        return first;
+    }
+    
+    /** Stop the decoder threads, if any. Called by ArduinoComm when its
+     *  thread exits. Frames still in their rings are dropped. */
+    public void stopDecoders() {
+        for (int i = 0; i < decodeThreads.length; ++i) {
+            decodeThreads[i].interrupt();
+        }
+    }
+    
+    /** Count of messages not queued, because the controller had all of the
+     *  queue's messages that their lane may use, or a decoder fell behind. */
+    public int getDropCount() {
+        int n = ringDrops;
+        for (int i = 0; i < stages.length; ++i) {
+            n += stages[i].dropped;
+        }
+        return n;
+    }
+    
+    /** Register our counts, and our queue's, with metrics. */
+    public void registerMetrics(Metrics metrics) {
+        metrics.add("in.bytes", bytesIn);
+        metrics.add("in.frames", framesIn);
+        metrics.add("in.crcErrors", crcErrors);
+        metrics.add("in.overruns", overruns);
+        metrics.add("in.resyncs", resyncs);
+        metrics.add("in.echoes", echoes);
+        metrics.add("in.checksumErrors", new Metrics.Gauge() {
+            public long read() { return decoder.checksumErrors; }
+        });
+        metrics.add("in.unknownFrames", new Metrics.Gauge() {
+            public long read() { return decoder.unknownFrames; }
+        });
+        metrics.add("in.parseErrors", new Metrics.Gauge() {
+            public long read() {
+                long n = 0;
+                for (int i = 0; i < stages.length; ++i) {
+                    n += stages[i].decoder.parseErrors;
+                }
+                return n;
+            }
+        });
+        metrics.add("in.drops", new Metrics.Gauge() {
+            public long read() { return getDropCount(); }
+        });
+        metrics.add("ingest", ingestLatency);
+        sensorQueue.registerMetrics(metrics, "sensorQueue");
     }
-    */
     
     /** Provide our queue for the control module. */
     public PoolQueue getQueue() {
         return sensorQueue;
     }
     
-    private int readInput() {
-        int b = 0;
-        // @Debug: Comment out the try catch.
-        try {
-            Log.d(TAG, "About to call read()");
-            b = input.read();
-            Log.d(TAG, "read() returned " + b);
-        } catch (IOException e) {
-            Log.d(TAG, "read() threw IOException", e);
-            return -1;
+    /** Time from a frame's arrival to its message being queued. */
+    public LatencyStats getIngestLatency() {
+        return ingestLatency;
+    }
+    
+    /** Provide the newest reading from each sensor, for the control module. */
+    public SensorSnapshot getSnapshot() {
+        return snapshot;
+    }
+    
+    /** 
+     * Called by ArduinoComm, on its thread, when the socket has data. Our
+     * messages are CRLF-terminated 8-bit text with comma-separated fields,
+     * or binary frames. We read whatever has arrived in one go, and
+     * FrameScanner calls onFrame or onValues for each message it finds.
+     * 
+     * @return number of bytes read, or -1 if the board closed the socket
+     */
+    public int readFrom(Board board, ReadableByteChannel channel) throws IOException {
+        start(board);
+        int n = board.scanner.readFrom(channel);
+        if (CommLog.TRACE) CommLog.trace(CommLog.CHUNK, n, 0);
+        count(board, n);
+        return n;
+    }
+    
+    /** Parse input from board that has come from somewhere other than a
+     *  channel, e.g. a capture. */
+    public void process(Board board, byte[] buf, int offset, int count) {
+        start(board);
+        board.scanner.scan(buf, offset, count);
+        count(board, count);
+    }
+    
+    /** Make board current, and note its scanner's counts. */
+    private void start(Board board) {
+        current = board;
+        crcBefore = board.scanner.crcErrors;
+        overrunsBefore = board.scanner.overruns;
+        resyncsBefore = board.scanner.resyncs;
+    }
+    
+    /** Count n bytes read from board, and the bad frames its scanner found
+     *  in them. */
+    private void count(Board board, int n) {
+        if (n > 0) {
+            bytesIn.add(n);
+        }
+        FrameScanner scanner = board.scanner;
+        if (scanner.crcErrors != crcBefore) {
+            crcErrors.add(scanner.crcErrors - crcBefore);
         }
-        if (b < 0) {
-            Log.d(TAG, "read() returned -1");
-            return -1;
+        if (scanner.overruns != overrunsBefore) {
+            overruns.add(scanner.overruns - overrunsBefore);
+        }
+        if (scanner.resyncs != resyncsBefore) {
+            resyncs.add(scanner.resyncs - resyncsBefore);
         }
-        return b;
     }
     
-    /** 
-     * Read from USB off the main thread.  Our messages are CRLF-terminated
-     * 8-bit text with comma-separated fields.
+    /** Parse input that has come from somewhere other than a channel, from
+     *  a single board. */
+    public void process(byte[] buf, int offset, int count) {
+        process(local, buf, offset, count);
+    }
+    
+    /**
+     * Called by FrameScanner with each complete message. We check it, deal
+     * with a hello, an ack or an echo here, and pass anything else to a
+     * decode stage, which decodes it directly into a message from the
+     * pool, and queues it up.
      * 
-     * @ToDo: The message semantics are embedded. Might be cleaner to move the
-     * interpretation out. Just tokenize here and hand off the interpretation.
+     * This runs on ArduinoComm's I/O thread, which must not block -- it also
+     * services the command queue, and the controller may be waiting on that
+     * before it gives back sensor messages. So if the controller is holding
+     * all of our messages, or a decoder thread is too far behind, we drop
+     * this one. If it got as far as being decoded, it still gets into the
+     * snapshot, so the newest reading isn't lost.
      */
-    public void run() {
-        Log.d(TAG, "Worker thread started.");
-        
-        // Byte read from Arduino. It's an int because read returns -1 if
-        // there's no more data, i.e. if the Arduino closes its socket.
-        int b = 0;
-        int b2 = 0;
-        // The message we're currently assembling.
-        ArduinoMessage m = null;
-        // Flag for whether we peeked ahead at the next byte.
-        boolean peeked = false;
-        // Flag for end of message.
-        boolean msgDone = false;
-        // @Debug:
-        // This is a stand-in for the real parser output.  For testing, we are
-        // just going to display and log the text messages.  We'll assemble the
-        // text here.
-        StringBuilder text = new StringBuilder(Constants.MAX_MESSAGE_LEN);
-        
-        while (true) {
-            // Here, we're at the start of a new message.
-            msgDone = false;
-            // Get an empty message.
-            m = sensorQueue.obtain();
-            // @Debug: Empty our text storage.
-            text.setLength(0);
-            // Get a timestamp -- we'll use elapsed time since boot, not wall
-            // clock, as the latter can get changed arbitrarily, and we want
-            // accurate intervals.
-            m.time = SystemClock.elapsedRealtime();
-            // @Debug:
-            text.append(m.time).append((char)Constants.COMMA);
-            
-            // @ToDo: Refactor this. Read a whole message up to the CRLF
-            // without parsing, then tokenize & split on break chars. Can't
-            // blindly split on commas as the bytes following &I might equal a
-            // comma. Better, use a parser generator, or an NMEA package.
-            // @ToDo: Regardless of method, finish the parser for the actual
-            // sensor formats.
-            
-            // Read until we see a CRLF, which ends one message.
-            while (!msgDone) {
-                // Some formats require peeking ahead one char -- if we did
-                // that, the char is already in b.
-                if (!peeked) {
-                    b = readInput();
-                }
-                peeked = false;
-                if (b < 0) {
-                    // @ToDo: Is there a way to recover if we get an exception
-                    // or end of stream? Can we close and re-open the socket?
-                    return;
-                }
-                
-                switch (b) {
-                case Constants.CR:
-                    b = readInput();
-                    if (b == Constants.LF) {
-                        // At end of message -- send it off.
-                        // @Debug: This is Linux -- don't need the CR.
-                        text.append((char)Constants.LF);
-                        // @Debug:
-                        m.obj = new String(text);
-                        Log.d(TAG, "End of message, sending.");
-                        sensorQueue.send(m);
-                        // Don't hold a reference to the message.
-                        m = null;
-                        msgDone = true;
-                    } else {
-                        // CR in the middle of a message -- probably a mistake.
-                        text.append((char)Constants.CR);
-                        peeked = true;
-                    }
-                    break;
-                    
-                case Constants.AMP:
-                    // &I prefixes a two-byte analog value, high byte first.
-                    b = readInput();
-                    if ((b == Constants.UPPER_I) || (b == Constants.LOWER_I)) {
-                        Log.d(TAG, "Found &I");
-                        b = readInput();
-                        b2 = readInput();
-                        int val = comm.composeInt(b, b2);
-                        // @Debug:
-                        text.append(val);
-                    } else {
-                        // It's just an &...
-                        // @Debug:
-                        text.append((char)Constants.AMP);
-                    }
-                    break;
-                
-                default:
-                    // @Debug:
-                    text.append((char)b);
-                    break;
-                }
+    public void onFrame(byte[] frame, int length, int checksum) {
+        framesIn.increment();
+        int end = decoder.checkedLength(frame, length, checksum);
+        if (end < 0) {
+            if (CommLog.TRACE) CommLog.trace(CommLog.BAD_CHECKSUM, length, checksum);
+            return;
+        }
+        MessageFormat format = decoder.match(frame, end);
+        if (format == null) {
+            if (CommLog.TRACE) CommLog.trace(CommLog.UNKNOWN_FRAME, length, 0);
+            return;
+        }
+        if (format == MessageFormat.PRID) {
+            if (decoder.decode(format, frame, end, hello)) {
+                identify(hello);
+            }
+            return;
+        }
+        if (!current.isIdentified()) {
+            identify(null);
+        }
+        if (format == MessageFormat.ACK) {
+            if (decoder.decode(format, frame, end, ack) && comm != null) {
+                comm.onAck(current, ack.val1);
             }
+            return;
+        }
+        if (format == MessageFormat.ECHO) {
+            echoes.increment();
+            return;
+        }
+        // The board's clock must see frames in the order they arrived, so
+        // we find the time here, rather than leave it to the stages.
+        long frameNanos = current.scanner.getFrameNanos();
+        long sampleNanos = sampleNanos(MessageDecoder.findMicros(frame, end), frameNanos);
+        int key = MessageDecoder.sensorKey(format, frame, end);
+        DecodeStage stage = stageFor(key);
+        if (stage.ring == null) {
+            stage.decodeText(format, frame, end, current.id, frameNanos, sampleNanos);
+            return;
+        }
+        FrameRing.Slot s = stage.ring.claim();
+        if (s == null) {
+            if (CommLog.TRACE) CommLog.trace(CommLog.QUEUE_FULL, key, 0);
+            ++ringDrops;
+            return;
+        }
+        s.format = format;
+        System.arraycopy(frame, 0, s.frame, 0, end);
+        s.end = end;
+        s.board = current.id;
+        s.frameNanos = frameNanos;
+        s.sampleNanos = sampleNanos;
+        stage.ring.publish();
+    }
+    
+    /**
+     * Called by FrameScanner with the values from each binary frame. These
+     * need no decoding, so the stage just copies them into a message and
+     * queues it up, as for onFrame.
+     */
+    public void onValues(int type, int which, int[] values, int count) {
+        framesIn.increment();
+        if (type == Constants.BOARD_HELLO) {
+            hello.nvals = count;
+            for (int i = 0; i < count; ++i) {
+                hello.setValue(i + 1, values[i]);
+            }
+            identify(hello);
+            return;
+        }
+        if (!current.isIdentified()) {
+            identify(null);
+        }
+        long boardMicros = current.scanner.getBoardMicros();
+        long frameNanos = current.scanner.getFrameNanos();
+        long sampleNanos = sampleNanos(boardMicros, frameNanos);
+        DecodeStage stage = stageFor(type * SensorSnapshot.MAX_WHICH + which);
+        if (stage.ring == null) {
+            stage.decodeValues(type, which, values, count, boardMicros,
+                    current.id, frameNanos, sampleNanos);
+            return;
+        }
+        FrameRing.Slot s = stage.ring.claim();
+        if (s == null) {
+            if (CommLog.TRACE) CommLog.trace(CommLog.QUEUE_FULL, type, which);
+            ++ringDrops;
+            return;
+        }
+        s.format = null;
+        s.type = type;
+        s.which = which;
+        System.arraycopy(values, 0, s.values, 0, count);
+        s.count = count;
+        s.boardMicros = boardMicros;
+        s.board = current.id;
+        s.frameNanos = frameNanos;
+        s.sampleNanos = sampleNanos;
+        stage.ring.publish();
+    }
+    
+    /** When the reading was taken: when the board says, if it says, else
+     *  when the frame started to arrive. */
+    private long sampleNanos(long boardMicros, long frameNanos) {
+        return (boardMicros >= 0)
+                ? current.clock.toPhoneNanos(boardMicros, frameNanos)
+                : frameNanos;
+    }
+    
+    /** The stage that decodes the sensor with the given key. */
+    private DecodeStage stageFor(int key) {
+        return stages[(key & 0x7fffffff) % stages.length];
+    }
+    
+    /**
+     * Settle which board we're hearing from: the one named in its hello, or
+     * if its first frame isn't a hello, DEFAULT_BOARD. Tell ArduinoComm, so
+     * it can route the board's commands to it.
+     */
+    private void identify(ArduinoMessage hello) {
+        int id = Constants.DEFAULT_BOARD;
+        if (hello != null) {
+            if (hello.nvals >= 1 && hello.val1 >= 0 && hello.val1 < Constants.MAX_BOARDS) {
+                id = hello.val1;
+            } else {
+                Log.d(TAG, "Bad board id in hello, using the default.");
+            }
+        }
+        current.id = id;
+        if (comm != null) {
+            comm.onIdentified(current, hello);
         }
     }
-
 }
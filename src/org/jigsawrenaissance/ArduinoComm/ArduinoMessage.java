@@ -7,34 +7,57 @@ package org.jigsawrenaissance.ArduinoComm;
  * primitive fields, so we'd have to create objects to hold our data --
  * exactly what we're trying to avoid by having a pool of message objects.
  * 
- * @ToDo: Change the following so that some values can be floats, e.g.
- * lat and lon. That spoils ordering the values as they are in the NMEA
- * strings, so provide accessors for each type of data.
- * 
  * All argument values (val1 through val20) are encoded as integers.
+ * Values that aren't whole numbers are in fixed point, e.g. lat and lon in
+ * 1e-7 degrees, altitude in millimetres -- see the formats in
+ * MessageFormat. That keeps the values in the order they are in the NMEA
+ * strings, with no floats to convert.
  * For incoming messages, the order of order of values is the same as they
  * appear in the NMEA string. For outgoing commands, only val1 is used --
- * the target of the command is specified in type, and the terminating zero
- * byte will be added by ArduinoOut when it constructs the outgoing text.
+ * the target of the command is specified in type. ArduinoOut sends the
+ * command as target, value, and a CRC-8 check byte over those two, with a
+ * marker of zero bytes ahead of each batch -- see
+ * Constants.COMMAND_MESSAGE_LEN.
  * 
  * @author Pat Tressel
  */
 public class ArduinoMessage {
-    /** Timestamp, milliseconds since phone boot. */
+    /** When the reading was taken, milliseconds since phone boot. */
     public long time;
+    // Latency timestamps, all from System.nanoTime(), or 0 if not stamped.
+    /** When the start of the message arrived from the board. */
+    public long frameNanos;
+    /** When the message was sent on its PoolQueue. */
+    public long enqueueNanos;
+    /** When the message was read from its PoolQueue. */
+    public long dequeueNanos;
+    /** For a command, frameNanos of the sensor message it responds to, if
+     *  the controller fills it in. Used to measure reaction time. */
+    public long sourceNanos;
+    /** For a sensor message, when the board took the reading, by
+     *  System.nanoTime(). If the board sent its own time stamp, this is
+     *  that converted to phone time, else it's frameNanos. Use this for
+     *  intervals between readings. */
+    public long sampleNanos;
+    /** The board's micros() when it took the reading, if it sent it, else
+     *  -1. */
+    public long boardMicros;
     /** Type of message, i.e. which type of sensor or command. */
     public int type;
     /** Which specific sensor (within type) this comes from, or which
      *  specific system (within type) this command is directed at. */
     public int which;
+    /** For a sensor message, the id of the board it came from. */
+    public int board;
     /** Number of argument values supplied in this message. First value is in
      *  val1, and there are no gaps, i.e if nvals is some number N, then the
      *  valid arguments are val1 through valN. */
     public int nvals;
     // All arguments get encoded as integers. For incoming messages the
     // order of arguments is the same as they appear in the NMEA string.
-    // For outgoing commands, only the first two are used -- a third
-    // zero byte will be added by ArduinoOut.
+    // For outgoing commands, only val1 is used -- ArduinoOut sends it
+    // after the target, with a CRC-8 check byte (see
+    // Constants.COMMAND_MESSAGE_LEN).
     public int val1;
     public int val2;
     public int val3;
@@ -55,14 +78,102 @@ public class ArduinoMessage {
     public int val18;
     public int val19;
     public int val20;
+    /** Which of its PoolQueue's lanes this message's pool is, so giveback
+     *  returns it there. Set by the PoolQueue. */
+    public int poolLane;
+    
+    /** Copy everything but poolLane from another message. */
+    public void copyFrom(ArduinoMessage m) {
+        time = m.time;
+        frameNanos = m.frameNanos;
+        enqueueNanos = m.enqueueNanos;
+        dequeueNanos = m.dequeueNanos;
+        sourceNanos = m.sourceNanos;
+        sampleNanos = m.sampleNanos;
+        boardMicros = m.boardMicros;
+        type = m.type;
+        which = m.which;
+        board = m.board;
+        nvals = m.nvals;
+        val1 = m.val1;
+        val2 = m.val2;
+        val3 = m.val3;
+        val4 = m.val4;
+        val5 = m.val5;
+        val6 = m.val6;
+        val7 = m.val7;
+        val8 = m.val8;
+        val9 = m.val9;
+        val10 = m.val10;
+        val11 = m.val11;
+        val12 = m.val12;
+        val13 = m.val13;
+        val14 = m.val14;
+        val15 = m.val15;
+        val16 = m.val16;
+        val17 = m.val17;
+        val18 = m.val18;
+        val19 = m.val19;
+        val20 = m.val20;
+    }
+    
+    /** Set argument value i, where i is 1 through MAX_MESSAGE_VALUES, i.e.
+     *  setValue(1, x) sets val1. For use by code that fills in the values
+     *  in order, such as MessageDecoder. */
+    public void setValue(int i, int value) {
+        switch (i) {
+        case 1: val1 = value; break;
+        case 2: val2 = value; break;
+        case 3: val3 = value; break;
+        case 4: val4 = value; break;
+        case 5: val5 = value; break;
+        case 6: val6 = value; break;
+        case 7: val7 = value; break;
+        case 8: val8 = value; break;
+        case 9: val9 = value; break;
+        case 10: val10 = value; break;
+        case 11: val11 = value; break;
+        case 12: val12 = value; break;
+        case 13: val13 = value; break;
+        case 14: val14 = value; break;
+        case 15: val15 = value; break;
+        case 16: val16 = value; break;
+        case 17: val17 = value; break;
+        case 18: val18 = value; break;
+        case 19: val19 = value; break;
+        case 20: val20 = value; break;
+        default: throw new IndexOutOfBoundsException("No value " + i);
+        }
+    }
     
-    // Temporary field for testing. We don't want to require users of this
-    // class to instantiate objects for each message -- defeats the purpose
-    // of using a pool.
-    public Object obj;
+    /** Get argument value i, where i is 1 through MAX_MESSAGE_VALUES. */
+    public int getValue(int i) {
+        switch (i) {
+        case 1: return val1;
+        case 2: return val2;
+        case 3: return val3;
+        case 4: return val4;
+        case 5: return val5;
+        case 6: return val6;
+        case 7: return val7;
+        case 8: return val8;
+        case 9: return val9;
+        case 10: return val10;
+        case 11: return val11;
+        case 12: return val12;
+        case 13: return val13;
+        case 14: return val14;
+        case 15: return val15;
+        case 16: return val16;
+        case 17: return val17;
+        case 18: return val18;
+        case 19: return val19;
+        case 20: return val20;
+        default: throw new IndexOutOfBoundsException("No value " + i);
+        }
+    }
     
-    // @ToDo: If we want to ditch LinkedBlockingDeque and LinkedBlockingQueue
-    // in favor of just linking ArduinoMessage objects directly, add a next
-    // field. For justification see the Android Message and MessageQueue
-    // classes.
+    // Note SpscPoolQueue avoids the per-message nodes of LinkedBlockingDeque
+    // and LinkedBlockingQueue by keeping messages in preallocated rings, so
+    // there's no need for a next field here.
 }
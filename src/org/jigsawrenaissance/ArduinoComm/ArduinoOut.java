@@ -1,7 +1,8 @@
 package org.jigsawrenaissance.ArduinoComm;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 import android.util.Log;
 
@@ -11,72 +12,704 @@ import android.util.Log;
  * ...
  * and send them to the Arduino.
  * 
+ * This doesn't have a thread of its own. ArduinoComm's thread drains the
+ * command queue whenever something is sent to it, and writes the commands
+ * to the socket when the socket can take them.
+ * 
+ * There may be several boards, each owning some of the command targets. A
+ * board says which targets it owns in its hello (see ArduinoIn). A board
+ * that doesn't send a hello takes all the targets nobody else has claimed,
+ * so a single board of that sort gets everything. Commands for a target
+ * nobody owns yet wait until someone does. Each board has its own outbox of
+ * pending commands and its own write buffer, so a board that's slow to
+ * take its commands doesn't hold up the others'.
+ * 
+ * The board doesn't watch for a controller that has stopped talking to it,
+ * so a throttle setting would stay latched if the controller stalled. So,
+ * per target, we can re-send the latest value every so often, so the board
+ * knows we're alive; send a safe value if the controller sends nothing for
+ * too long; and send no more often than some minimum interval, holding a
+ * new value back until the interval is up, and dropping a repeat of the
+ * value last sent. The times are kept in a TimerWheel, run on ArduinoComm's
+ * thread, which also sets how long it waits in select().
+ * 
+ * The throttle and steering are refreshed from the start, but no target
+ * has a safe stop until the caller sets one with setSafeStop -- only the
+ * caller knows what value the board's hardware takes as safe. Until then,
+ * a stalled controller leaves the throttle where it was.
+ * 
+ * Optionally, each write to a board can carry a sequence number, which the
+ * board acks once it has acted on the write (see setSequencing). That gives
+ * the round trip time of each command, and tells us which never arrived,
+ * without waiting on the board before sending more.
+ * 
  * @author Pat Tressel
  */
-public class ArduinoOut implements Runnable{
+public class ArduinoOut {
     public static final String TAG = "ArduinoOut";
     
     /** Our message transfer queue. */
     private PoolQueue commandQueue;
     
-    /** Buffer ArduinoComm's output stream. */
-    private BufferedOutputStream output;
+    /**
+     * The commands waiting for one board, and the buffer they're written
+     * from.
+     */
+    private static class Outbox {
+        /** Scratch buffer for formatting command messages -- room for the
+         *  resync marker, one command to every possible target, and the
+         *  sequence marker, since that's the most we send in one write. We
+         *  don't format more into it until everything in it has been
+         *  written, so we don't need to allocate a new buffer per write. */
+        final byte[] buffer = new byte[Constants.COMMAND_RESYNC_LEN
+                + Constants.COMMAND_MESSAGE_LEN * (Constants.MAX_COMMAND_TARGETS + 1)];
+        /** The part of buffer that is formatted and not yet written. */
+        final ByteBuffer unwritten = ByteBuffer.wrap(buffer);
+        
+        // Targets with a command waiting, in the order they first arrived,
+        // and the latency timestamps of those commands. The values are in
+        // latestValue, which all boards share.
+        final boolean[] isPending = new boolean[Constants.MAX_COMMAND_TARGETS];
+        final int[] pendingTargets = new int[Constants.MAX_COMMAND_TARGETS];
+        int numPending = 0;
+        final long[] pendingEnqueueNanos = new long[Constants.MAX_COMMAND_TARGETS];
+        final long[] pendingSourceNanos = new long[Constants.MAX_COMMAND_TARGETS];
+        
+        // The commands in the buffer that's being written, and their
+        // timestamps, so we can record their latency once the write
+        // completes.
+        final int[] batchTargets = new int[Constants.MAX_COMMAND_TARGETS];
+        final long[] batchEnqueueNanos = new long[Constants.MAX_COMMAND_TARGETS];
+        final long[] batchSourceNanos = new long[Constants.MAX_COMMAND_TARGETS];
+        int batchSize = 0;
+        /** Whether the write in buffer has a sequence number. */
+        boolean batchSequenced = false;
+        
+        // Sequenced writes not yet acked, in a ring indexed by sequence
+        // number mod COMMAND_WINDOW: when each finished going out (0 until
+        // then), and the targets of its commands.
+        final long[] sentNanos = new long[Constants.COMMAND_WINDOW];
+        final byte[][] sentTargets = new byte[Constants.COMMAND_WINDOW][Constants.MAX_COMMAND_TARGETS];
+        final int[] sentCount = new int[Constants.COMMAND_WINDOW];
+        /** Sequence number of the oldest write not yet acked. */
+        int oldestSeq = 0;
+        /** Sequence number for the next write. */
+        int nextSeq = 0;
+        
+        Outbox() {
+            unwritten.limit(0);
+        }
+        
+        /** Note that target has a command waiting. */
+        void add(int target, long enqueueNanos, long sourceNanos) {
+            if (!isPending[target]) {
+                isPending[target] = true;
+                pendingTargets[numPending++] = target;
+            }
+            pendingEnqueueNanos[target] = enqueueNanos;
+            pendingSourceNanos[target] = sourceNanos;
+        }
+        
+        /** Number of sequenced writes not yet acked. */
+        int inFlight() {
+            return (nextSeq - oldestSeq) & 0xff;
+        }
+        
+        /** Take target's waiting command out of the list. */
+        void remove(int target) {
+            isPending[target] = false;
+            int j = 0;
+            for (int i = 0; i < numPending; ++i) {
+                if (pendingTargets[i] != target) {
+                    pendingTargets[j++] = pendingTargets[i];
+                }
+            }
+            numPending = j;
+        }
+    }
+    
+    /** One outbox per board, plus one for commands to targets nobody has
+     *  claimed. */
+    private final Outbox[] outboxes = new Outbox[Constants.MAX_BOARDS + 1];
+    /** Owner of the targets nobody has claimed. */
+    private static final int UNCLAIMED = Constants.MAX_BOARDS;
+    
+    /** Latest value sent to each target. Only the latest is kept -- there's
+     *  no point sending a stale throttle setting that has been superseded. */
+    private final int[] latestValue = new int[Constants.MAX_COMMAND_TARGETS];
+    
+    /** Board that owns each target. */
+    private final int[] owner = new int[Constants.MAX_COMMAND_TARGETS];
+    
+    /** Time from a command being sent by the controller to its being
+     *  written to the socket, by target. */
+    private final LatencyStats flushLatency = new LatencyStats("flush");
+    /** Time from the arrival of the sensor message a command responds to,
+     *  to the command being written to the socket, by target. */
+    private final LatencyStats reactionLatency = new LatencyStats("reaction");
     
-    /** Scratch buffer for formatting command messages.
-     *  BufferedOutputStream.write() copies the contents of the buffer it's
-     *  passed before it returns, so we don't need to allocate a new buffer
-     *  for each write. */
-    private byte[] buffer = new byte[Constants.COMMAND_MESSAGE_LEN];
+    /** Targets we've ever had a command for, so we can bring a board that
+     *  has reset up to date. */
+    private final boolean[] everSent = new boolean[Constants.MAX_COMMAND_TARGETS];
+    
+    // Each target has a timer of each of these kinds. The timer for a
+    // target and kind is numbered target * NUM_TIMER_KINDS + kind.
+    /** Re-send the target's latest value. */
+    private static final int TIMER_REFRESH = 0;
+    /** The target's minimum interval is up -- send any held back value. */
+    private static final int TIMER_RELEASE = 1;
+    /** The controller has sent nothing for the target for too long. */
+    private static final int TIMER_DEADLINE = 2;
+    private static final int NUM_TIMER_KINDS = 3;
+    
+    private final TimerWheel timers = new TimerWheel(
+            NUM_TIMER_KINDS * Constants.MAX_COMMAND_TARGETS, Constants.TIMER_SLOTS,
+            Constants.TIMER_TICK_MS * 1000000L);
+    /** Timers that went off, from the wheel. */
+    private final int[] fired = new int[NUM_TIMER_KINDS * Constants.MAX_COMMAND_TARGETS];
+    
+    // Per target settings, in ns. 0 means don't.
+    private final long[] refreshNanos = new long[Constants.MAX_COMMAND_TARGETS];
+    private final long[] minIntervalNanos = new long[Constants.MAX_COMMAND_TARGETS];
+    private final long[] deadlineNanos = new long[Constants.MAX_COMMAND_TARGETS];
+    /** Value sent when a target's deadline passes. */
+    private final int[] safeValue = new int[Constants.MAX_COMMAND_TARGETS];
+    
+    // When each target's value was last formatted to go out, and what it
+    // was, for the minimum interval.
+    private final boolean[] everFormatted = new boolean[Constants.MAX_COMMAND_TARGETS];
+    private final long[] lastFormatNanos = new long[Constants.MAX_COMMAND_TARGETS];
+    private final int[] lastFormatValue = new int[Constants.MAX_COMMAND_TARGETS];
+    // A value held back by the minimum interval, with its latency
+    // timestamps.
+    private final boolean[] held = new boolean[Constants.MAX_COMMAND_TARGETS];
+    private final long[] heldEnqueueNanos = new long[Constants.MAX_COMMAND_TARGETS];
+    private final long[] heldSourceNanos = new long[Constants.MAX_COMMAND_TARGETS];
+    
+    // Written only on the I/O thread.
+    /** Number of times a deadline passed and we sent a safe value. */
+    public volatile int safeStops = 0;
+    /** Number of commands dropped because they repeated the value last
+     *  sent, within the target's minimum interval. */
+    public volatile int repeatsDropped = 0;
+    
+    // What has gone out, for Metrics.
+    private final StripedCounter writes = new StripedCounter();
+    private final StripedCounter bytesOut = new StripedCounter();
+    private final StripedCounter commandsOut = new StripedCounter();
+    
+    /** Whether writes carry sequence numbers. */
+    private boolean sequencing = false;
+    /** Commands the boards have acked. */
+    private final StripedCounter acked = new StripedCounter();
+    /** Commands in sequenced writes that were never acked. */
+    private final StripedCounter lost = new StripedCounter();
+    /** Time from a sequenced write going out to the board acking it, by
+     *  target. */
+    private final LatencyStats ackLatency = new LatencyStats("ack");
     
     public ArduinoOut(ArduinoComm comm) {
-        output = new BufferedOutputStream(comm.getOutputStream());
-        commandQueue = new PoolQueue(Constants.OUT_QUEUE_MAX);
+        this(new SpscPoolQueue(Constants.OUT_QUEUE_MAX, Constants.OUT_QUEUE_URGENT));
+        // Stopping has to get through even if the turret is being busy.
+        commandQueue.setLane(Constants.COMMAND_THROTTLE, Constants.LANE_URGENT);
+        commandQueue.setLane(Constants.COMMAND_STEERING, Constants.LANE_URGENT);
+        commandQueue.setObtainTimeout(Constants.OUT_QUEUE_WAIT_MS);
+        // Let the board know we're still here. A safe stop is up to the
+        // caller, who knows what the motor controller's neutral is.
+        setRefresh(Constants.COMMAND_THROTTLE, Constants.COMMAND_REFRESH_MS);
+        setRefresh(Constants.COMMAND_STEERING, Constants.COMMAND_REFRESH_MS);
+        comm.setArduinoOut(this);
+    }
+    
+    /** Use this without ArduinoComm, e.g. to benchmark formatting and
+     *  writing. The caller supplies the channel to writeTo. */
+    public ArduinoOut(PoolQueue commandQueue) {
+        this.commandQueue = commandQueue;
+        for (int board = 0; board < outboxes.length; ++board) {
+            outboxes[board] = new Outbox();
+        }
+        for (int target = 0; target < owner.length; ++target) {
+            owner[target] = UNCLAIMED;
+        }
     }
     
     // @Debug: For testing, comment out comm and write the formatted messages
     // to the log.
     //public ArduinoOut() {
-    //commandQueue = new PoolQueue(Constants.OUT_QUEUE_MAX);
+    //commandQueue = new SpscPoolQueue(Constants.OUT_QUEUE_MAX);
     //}
     
+    /** Register our counts and latencies, and our queue's, with metrics. */
+    public void registerMetrics(Metrics metrics) {
+        metrics.add("out.writes", writes);
+        metrics.add("out.bytes", bytesOut);
+        metrics.add("out.commands", commandsOut);
+        metrics.add("out.safeStops", new Metrics.Gauge() {
+            public long read() { return safeStops; }
+        });
+        metrics.add("out.repeatsDropped", new Metrics.Gauge() {
+            public long read() { return repeatsDropped; }
+        });
+        metrics.add("out.acked", acked);
+        metrics.add("out.lost", lost);
+        metrics.add("out.inFlight", new Metrics.Gauge() {
+            public long read() {
+                long n = 0;
+                for (int board = 0; board < outboxes.length; ++board) {
+                    n += outboxes[board].inFlight();
+                }
+                return n;
+            }
+        });
+        metrics.add("flush", flushLatency);
+        metrics.add("reaction", reactionLatency);
+        metrics.add("ack", ackLatency);
+        commandQueue.registerMetrics(metrics, "commandQueue");
+    }
+    
     /** Provide our queue for the control module. */
     public PoolQueue getQueue() {
         return commandQueue;
     }
     
+    /** Time from the controller's send to the write, by target. */
+    public LatencyStats getFlushLatency() {
+        return flushLatency;
+    }
+    
+    /** Time from the sensor frame to the command's write, by target, for
+     *  commands where the controller filled in sourceNanos. */
+    public LatencyStats getReactionLatency() {
+        return reactionLatency;
+    }
+    
+    /** Time from a sequenced write to the board's ack, by target. */
+    public LatencyStats getAckLatency() {
+        return ackLatency;
+    }
+    
+    /**
+     * Give each write to a board a sequence number, 0 to 255 and round
+     * again, in a command to COMMAND_SEQUENCE after the write's other
+     * commands. The board acks it with $ACK,<seq> once it has acted on
+     * them. We don't wait for acks: up to COMMAND_WINDOW writes per board
+     * may be unacked, and past that we give up on the oldest. Commands are
+     * never held back for acks either, as a late steering command is worse
+     * than an unacked one.
+     * 
+     * The board acks every sequence number it gets, in order, so an ack
+     * covers everything before it: a write still unacked when a later one
+     * is acked didn't arrive whole, and its commands are counted as lost
+     * (or it was its ack that was lost). Use this only with a board that
+     * acks -- to one that doesn't, every command looks lost. Call this
+     * before ArduinoComm's thread starts.
+     */
+    public void setSequencing(boolean sequencing) {
+        this.sequencing = sequencing;
+    }
+    
+    /**
+     * Called by ArduinoComm, on its thread, when board acks its writes up
+     * to seq. The commands in that write get their round trip time
+     * recorded. An ack for a write we've given up on, or that isn't ours,
+     * is ignored.
+     */
+    public void onAck(int board, int seq) {
+        Outbox box = outboxes[board];
+        int count = ((seq - box.oldestSeq) & 0xff) + 1;
+        if (count > box.inFlight()) {
+            return;
+        }
+        lose(box, count - 1);
+        int slot = seq & (Constants.COMMAND_WINDOW - 1);
+        acked.add(box.sentCount[slot]);
+        long sent = box.sentNanos[slot];
+        if (sent != 0) {
+            long now = System.nanoTime();
+            for (int i = 0; i < box.sentCount[slot]; ++i) {
+                ackLatency.record(box.sentTargets[slot][i] & 0xff, sent, now);
+            }
+        }
+        box.oldestSeq = (seq + 1) & 0xff;
+    }
+    
+    /** Give up on the oldest count of box's unacked writes. */
+    private void lose(Outbox box, int count) {
+        for (int i = 0; i < count; ++i) {
+            lost.add(box.sentCount[box.oldestSeq & (Constants.COMMAND_WINDOW - 1)]);
+            box.oldestSeq = (box.oldestSeq + 1) & 0xff;
+        }
+    }
+    
+    /** Put the sequence marker for the write being formatted, which has n
+     *  commands, at offset in board's buffer, and note the write in the
+     *  window. */
+    private int sequence(int board, int n, int offset) {
+        Outbox box = outboxes[board];
+        if (box.inFlight() == Constants.COMMAND_WINDOW) {
+            lose(box, 1);
+        }
+        int seq = box.nextSeq;
+        int slot = seq & (Constants.COMMAND_WINDOW - 1);
+        for (int i = 0; i < n; ++i) {
+            box.sentTargets[slot][i] = (byte)box.batchTargets[i];
+        }
+        box.sentCount[slot] = n;
+        box.sentNanos[slot] = 0;
+        box.nextSeq = (seq + 1) & 0xff;
+        box.batchSequenced = true;
+        return formatCommand(board, Constants.COMMAND_SEQUENCE, seq, offset);
+    }
+    
+    /**
+     * Re-send target's latest value every ms milliseconds, counting from
+     * when it last went out, whether or not the controller has sent a new
+     * one. 0 turns this off. Call this on ArduinoComm's thread, or before it
+     * starts, as for the others below.
+     */
+    public void setRefresh(int target, int ms) {
+        refreshNanos[target] = ms * 1000000L;
+        if (ms == 0) {
+            timers.cancel(timerOf(target, TIMER_REFRESH));
+        }
+    }
+    
+    /**
+     * Send target's commands no more often than every ms milliseconds. A
+     * new value that comes sooner is held back until the interval is up
+     * (or replaced by a newer one meanwhile); a repeat of the value last
+     * sent is dropped. 0 turns this off.
+     */
+    public void setMinInterval(int target, int ms) {
+        minIntervalNanos[target] = ms * 1000000L;
+    }
+    
+    /**
+     * If the controller sends nothing for target for ms milliseconds,
+     * send value, e.g. to stop the motor, and keep it as the target's
+     * value until the controller sends another. 0 turns this off, and it's
+     * off until this is called -- value must be what the board's hardware
+     * takes as safe (e.g. a servo-style ESC's neutral is centred, not 0),
+     * so we don't guess it.
+     */
+    public void setSafeStop(int target, int ms, int value) {
+        deadlineNanos[target] = ms * 1000000L;
+        safeValue[target] = value;
+        if (ms == 0) {
+            timers.cancel(timerOf(target, TIMER_DEADLINE));
+        }
+    }
+    
+    /**
+     * Take a command from the controller. If there's already a command
+     * waiting for the same target, this replaces its value. The command goes
+     * to the board that owns the target, unless it's too soon after the
+     * last one.
+     */
+    public void coalesce(ArduinoMessage m) {
+        int target = m.type & 0xff;
+        latestValue[target] = m.val1;
+        everSent[target] = true;
+        if (target == Constants.COMMAND_FRAMING) {
+            // Every board gets this one.
+            for (int board = 0; board < Constants.MAX_BOARDS; ++board) {
+                outboxes[board].add(target, m.enqueueNanos, m.sourceNanos);
+            }
+            return;
+        }
+        long now = System.nanoTime();
+        if (deadlineNanos[target] > 0) {
+            timers.schedule(timerOf(target, TIMER_DEADLINE), now + deadlineNanos[target]);
+        }
+        if (minIntervalNanos[target] > 0 && everFormatted[target]
+                && now - lastFormatNanos[target] < minIntervalNanos[target]) {
+            if (m.val1 == lastFormatValue[target] && !outboxes[owner[target]].isPending[target]) {
+                // The board has this already.
+                held[target] = false;
+                timers.cancel(timerOf(target, TIMER_RELEASE));
+                ++repeatsDropped;
+                return;
+            }
+            if (!outboxes[owner[target]].isPending[target]) {
+                held[target] = true;
+                heldEnqueueNanos[target] = m.enqueueNanos;
+                heldSourceNanos[target] = m.sourceNanos;
+                timers.schedule(timerOf(target, TIMER_RELEASE),
+                        lastFormatNanos[target] + minIntervalNanos[target]);
+                return;
+            }
+            // It's waiting to go out anyway -- this just changes the value.
+        }
+        outboxes[owner[target]].add(target, m.enqueueNanos, m.sourceNanos);
+    }
+    
+    /**
+     * Act on the timers that are due: re-send values, send held back
+     * values, and send safe values. Called on ArduinoComm's thread, each
+     * time round its loop.
+     */
+    public void runTimers(long now) {
+        int n = timers.expire(now, fired);
+        for (int i = 0; i < n; ++i) {
+            int target = fired[i] / NUM_TIMER_KINDS;
+            Outbox box = outboxes[owner[target]];
+            switch (fired[i] % NUM_TIMER_KINDS) {
+            case TIMER_REFRESH:
+                if (everSent[target] && !held[target]) {
+                    // This is a repeat, not something the controller sent.
+                    box.add(target, 0, 0);
+                }
+                break;
+            case TIMER_RELEASE:
+                if (held[target]) {
+                    held[target] = false;
+                    box.add(target, heldEnqueueNanos[target], heldSourceNanos[target]);
+                }
+                break;
+            default:
+                if (everSent[target] && latestValue[target] != safeValue[target]) {
+                    Log.d(TAG, "No command for target " + target + ", sending safe value.");
+                    ++safeStops;
+                    latestValue[target] = safeValue[target];
+                    // This can't wait for the minimum interval.
+                    held[target] = false;
+                    timers.cancel(timerOf(target, TIMER_RELEASE));
+                    box.add(target, 0, 0);
+                }
+                break;
+            }
+        }
+    }
+    
+    /** Time until the next timer is due, in ns, or -1 if there are none. */
+    public long nanosToNextTimer(long now) {
+        return timers.nanosToNext(now);
+    }
+    
+    private static int timerOf(int target, int kind) {
+        return target * NUM_TIMER_KINDS + kind;
+    }
+    
+    /**
+     * Ask the boards to send their sensor data with the given framing, one
+     * of Constants.FRAMING_TEXT or FRAMING_BINARY. This goes out as an
+     * ordinary command, to COMMAND_FRAMING, so like any other command it's
+     * sent again whenever a board reconnects. A board switches framing after
+     * it has read the command, so frames of both kinds may arrive around then
+     * -- FrameScanner takes either. A board that doesn't support binary
+     * framing ignores the command and carries on with text. Call this on
+     * ArduinoComm's thread, or before it starts.
+     */
+    public void setFraming(int framing) {
+        int target = Constants.COMMAND_FRAMING;
+        latestValue[target] = framing;
+        everSent[target] = true;
+        for (int board = 0; board < Constants.MAX_BOARDS; ++board) {
+            outboxes[board].add(target, 0, 0);
+        }
+    }
+    
+    /**
+     * Route target's commands to board from now on. Called by ArduinoComm
+     * when a board's hello claims the target. Anything already waiting for
+     * the old owner moves to the new one.
+     */
+    public void claim(int board, int target) {
+        int old = owner[target];
+        if (old == board || target == Constants.COMMAND_FRAMING) {
+            return;
+        }
+        owner[target] = board;
+        Outbox from = outboxes[old];
+        if (from.isPending[target]) {
+            from.remove(target);
+            outboxes[board].add(target, from.pendingEnqueueNanos[target],
+                    from.pendingSourceNanos[target]);
+        }
+    }
+    
+    /** Route every target nobody has claimed to board. Called by
+     *  ArduinoComm for a board that didn't send a hello. */
+    public void claimUnclaimed(int board) {
+        for (int target = 0; target < owner.length; ++target) {
+            if (owner[target] == UNCLAIMED) {
+                claim(board, target);
+            }
+        }
+    }
+    
+    /** Board that owns target, or BOARD_UNIDENTIFIED if none does. */
+    public int ownerOf(int target) {
+        return (owner[target] == UNCLAIMED) ? Constants.BOARD_UNIDENTIFIED : owner[target];
+    }
+    
     /** 
      * Format the command as per:
      * ...
      * There are only two values per command -- the command target (steering,
      * throttle, turret pan, turret tilt), which is supplied in the message
      * type, and the value, supplied in val1. The command is sent to the board
-     * as three bytes: type, value, zero.
+     * as three bytes: type, value, and the CRC-8 of those two, so a board
+     * that is out of step can (usually) tell. See
+     * Constants.COMMAND_MESSAGE_LEN.
      * 
      * @ToDo: Push the command format to Github and reference it here.
+     * 
+     * @param board whose buffer to put the command in
+     * @param offset where in the buffer to put the command
+     * @return offset following the command
+     */
+    public int formatCommand(int board, int target, int value, int offset) {
+        if (CommLog.TRACE) CommLog.trace(CommLog.COMMAND, target, value);
+        byte[] buffer = outboxes[board].buffer;
+        buffer[offset] = (byte)target;
+        buffer[offset + 1] = (byte)value;
+        buffer[offset + 2] = (byte)FrameScanner.crc8(buffer, offset, 2);
+        return offset + Constants.COMMAND_MESSAGE_LEN;
+    }
+    
+    /**
+     * Format all of board's coalesced commands into its buffer, one after
+     * another, and clear them. Commands to targets in the command queue's
+     * urgent lane go first, so the board acts on them first. The batch
+     * starts with the resync marker (see Constants.COMMAND_RESYNC_LEN), so
+     * if a byte of an earlier batch went missing, the board will almost
+     * always be back in step for this one, and if we're sequencing, ends
+     * with the sequence marker.
+     * 
+     * @return number of bytes in the buffer
      */
-    public void formatCommand(ArduinoMessage m) {
-        Log.d(TAG, "Got command, type = " + m.type + ", value =" + m.val1);
-        buffer[0] = (byte)m.type;
-        buffer[1] = (byte)m.val1;
-        buffer[2] = 0;
-    }
-    
-    public void run() {
-        ArduinoMessage m = null;
-        while (true) {
-            // Block until there's a command.
-            m = commandQueue.read();
-            formatCommand(m);            
-            // @Debug: Comment out the write.
-            try {
-                output.write(buffer, 0, buffer.length);
-                // Flush after each command -- a bit wasteful of system calls,
-                // but we want the board to get commands without delay.
-                output.flush();
-            } catch (IOException e) {
-                Log.d(TAG, "write() threw IOException", e);
+    public int formatPending(int board) {
+        Outbox box = outboxes[board];
+        long now = System.nanoTime();
+        byte[] buffer = box.buffer;
+        for (int i = 0; i < Constants.COMMAND_RESYNC_LEN; ++i) {
+            buffer[i] = 0;
+        }
+        int length = Constants.COMMAND_RESYNC_LEN;
+        int n = 0;
+        for (int lane = Constants.NUM_LANES - 1; lane >= 0; --lane) {
+            for (int i = 0; i < box.numPending; ++i) {
+                int target = box.pendingTargets[i];
+                if (commandQueue.laneOf(target) != lane) {
+                    continue;
+                }
+                length = formatCommand(board, target, latestValue[target], length);
+                everFormatted[target] = true;
+                lastFormatNanos[target] = now;
+                lastFormatValue[target] = latestValue[target];
+                if (refreshNanos[target] > 0) {
+                    timers.schedule(timerOf(target, TIMER_REFRESH), now + refreshNanos[target]);
+                }
+                box.isPending[target] = false;
+                box.batchTargets[n] = target;
+                box.batchEnqueueNanos[n] = box.pendingEnqueueNanos[target];
+                box.batchSourceNanos[n] = box.pendingSourceNanos[target];
+                ++n;
             }
+        }
+        box.batchSize = box.numPending;
+        box.numPending = 0;
+        if (sequencing) {
+            length = sequence(board, n, length);
+        }
+        return length;
+    }
+    
+    /** Get board's formatted commands, for use with the length from
+     *  formatPending. */
+    public byte[] getBuffer(int board) {
+        return outboxes[board].buffer;
+    }
+    
+    /**
+     * Take everything that's in the command queue, keeping only the latest
+     * value for each target. Called on ArduinoComm's thread.
+     */
+    public void drainQueue() {
+        ArduinoMessage m = commandQueue.poll();
+        while (m != null) {
+            coalesce(m);
             commandQueue.giveback(m);
+            m = commandQueue.poll();
+        }
+    }
+    
+    /** Called by ArduinoComm when board's connection is lost. Anything half
+     *  written is discarded -- finishing it on a new connection would put
+     *  the board out of step with the command boundaries. */
+    public void reset(int board) {
+        Outbox box = outboxes[board];
+        box.unwritten.limit(0);
+        box.batchSize = 0;
+        // There's no knowing what the board did with unacked writes. The
+        // new connection starts again from 0.
+        lose(box, box.inFlight());
+        box.oldestSeq = 0;
+        box.nextSeq = 0;
+        box.batchSequenced = false;
+    }
+    
+    /** Called by ArduinoComm when a board connects. Queue up the latest
+     *  value for every target it owns, so it starts from the controller's
+     *  current settings. */
+    public void onConnect(int board) {
+        Outbox box = outboxes[board];
+        for (int target = 0; target < Constants.MAX_COMMAND_TARGETS; ++target) {
+            if (everSent[target] && !box.isPending[target]
+                    && (owner[target] == board || target == Constants.COMMAND_FRAMING)) {
+                // This is a repeat, not something the controller just sent.
+                box.add(target, 0, 0);
+            }
+        }
+    }
+    
+    /** True if there are commands waiting to be written to board. */
+    public boolean hasOutput(int board) {
+        Outbox box = outboxes[board];
+        return box.unwritten.hasRemaining() || box.numPending > 0;
+    }
+    
+    /**
+     * Write as much of board's waiting commands as the channel will take.
+     * All of its coalesced commands go out in one write, so the board gets
+     * them together, with one system call.
+     * 
+     * @return true if everything was written, false if the channel is full
+     *  and we need to be called again when it can take more
+     */
+    public boolean writeTo(int board, WritableByteChannel channel) throws IOException {
+        Outbox box = outboxes[board];
+        if (!box.unwritten.hasRemaining()) {
+            if (box.numPending == 0) {
+                return true;
+            }
+            int length = formatPending(board);
+            box.unwritten.clear();
+            box.unwritten.limit(length);
+        }
+        int n = channel.write(box.unwritten);
+        if (n > 0) {
+            writes.increment();
+            bytesOut.add(n);
+        }
+        if (box.unwritten.hasRemaining()) {
+            return false;
+        }
+        if (box.batchSize > 0) {
+            commandsOut.add(box.batchSize);
+            long now = System.nanoTime();
+            for (int i = 0; i < box.batchSize; ++i) {
+                flushLatency.record(box.batchTargets[i], box.batchEnqueueNanos[i], now);
+                reactionLatency.record(box.batchTargets[i], box.batchSourceNanos[i], now);
+            }
+            box.batchSize = 0;
+            if (box.batchSequenced) {
+                // The round trip starts now the write is all out.
+                box.sentNanos[(box.nextSeq - 1) & (Constants.COMMAND_WINDOW - 1)] = now;
+                box.batchSequenced = false;
+            }
         }
+        return box.numPending == 0;
     }
 }
@@ -0,0 +1,50 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One connection to a board. Each has its own FrameScanner, since frames
+ * from different boards arrive interleaved, and a partial frame from one
+ * mustn't run into a frame from another.
+ *
+ * A connection doesn't know which board it is until the board's first
+ * frame: if that's a hello ($PRID), it gives the id; otherwise the board is
+ * taken to be DEFAULT_BOARD. ArduinoIn sets the id.
+ *
+ * @author Pat Tressel
+ */
+public class Board {
+    public static final String TAG = "Board";
+
+    /** Which of ArduinoComm's connections this is, from 0 to MAX_BOARDS - 1.
+     *  Unlike the id, this is known from the start, and is what captures
+     *  record. */
+    public final int slot;
+    /** Board id, or BOARD_UNIDENTIFIED until its first frame. */
+    public int id = Constants.BOARD_UNIDENTIFIED;
+    /** Splits this board's input into frames. */
+    final FrameScanner scanner;
+    /** Converts the board's time stamps to ours. */
+    public final BoardClock clock = new BoardClock();
+
+    // Used by ArduinoComm.
+    SocketChannel socket;
+    SelectionKey key;
+    /** What we read and write -- the socket, or a capture tap on it. */
+    ByteChannel io;
+    /** When we last got input, by System.nanoTime(). */
+    long lastInputNanos;
+
+    /** A board whose input goes to in. */
+    public Board(ArduinoIn in, int slot) {
+        this.slot = slot;
+        scanner = new FrameScanner(in);
+    }
+
+    /** True once we know which board this is. */
+    public boolean isIdentified() {
+        return id != Constants.BOARD_UNIDENTIFIED;
+    }
+}
@@ -0,0 +1,151 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import android.util.Log;
+
+/**
+ * Converts a board's micros() time stamps to phone time, i.e.
+ * System.nanoTime(), so a reading can be given the time it was taken rather
+ * than the time it happened to arrive. Arrival times are blurred by the
+ * board's send loop, USB batching and our own reads; the board's clock isn't,
+ * but it runs at its own rate, from its own zero.
+ *
+ * Each frame tells us its arrival time minus its board time, which is the
+ * offset between the clocks plus however long the frame took to get here.
+ * That delay is never negative, and is often near its minimum, so the
+ * smallest difference seen over a window is a good measure of the offset.
+ * The change in that minimum from one window to the next, over the board
+ * time between them, is the drift of the board's clock against ours, which
+ * we smooth, as it's small and the minima are noisy. Between windows we
+ * extrapolate from the last minimum using the drift. If that would put a
+ * reading after it arrived, which can't be, we take that frame as the new
+ * minimum right away.
+ *
+ * micros() wraps every 71 minutes, which we allow for. If the board restarts,
+ * its clock jumps, and we start over.
+ *
+ * One BoardClock per board, used on the thread that reads from it.
+ *
+ * @author Pat Tressel
+ */
+public class BoardClock {
+    public static final String TAG = "BoardClock";
+
+    /** Board time over which we take each minimum, in ns. */
+    private static final long WINDOW_NANOS = 1000000000L;
+    /** Weight given to each new drift measurement. */
+    private static final double DRIFT_GAIN = 0.25;
+    /** If the board's clock and ours disagree by more than this about the
+     *  time between two frames, the board's clock has jumped, e.g. because
+     *  it restarted. */
+    private static final long JUMP_NANOS = 1000000000L;
+
+    private boolean started = false;
+    /** Last micros() seen, and how many times it has wrapped. */
+    private long lastMicros;
+    private long wraps;
+    /** Board and phone time of the last frame. */
+    private long lastBoardNanos;
+    private long lastArrivalNanos;
+
+    // The minimum we extrapolate from: phone time is board time plus
+    // anchorOffset, plus drift times the board time since anchorBoardNanos.
+    private long anchorBoardNanos;
+    private long anchorOffset;
+    /** Board clock's drift against ours, in ns per ns. */
+    private double drift = 0;
+
+    // The current window, and the minimum before it.
+    private long windowStart;
+    private long windowMinOffset;
+    private long windowMinBoardNanos;
+    private boolean havePrevious = false;
+    private long prevMinOffset;
+    private long prevMinBoardNanos;
+
+    /** Number of times we've started over. */
+    public int restarts = 0;
+
+    /**
+     * Convert a board time stamp to phone time.
+     *
+     * @param micros the board's micros(), as an unsigned 32-bit value
+     * @param arrivalNanos when the frame carrying it arrived, by
+     *  System.nanoTime()
+     * @return when the board's clock read micros, by System.nanoTime()
+     */
+    public long toPhoneNanos(long micros, long arrivalNanos) {
+        if (started && micros < lastMicros) {
+            ++wraps;
+        }
+        lastMicros = micros;
+        long boardNanos = ((wraps << 32) + micros) * 1000;
+        long offset = arrivalNanos - boardNanos;
+        if (!started || Math.abs((boardNanos - lastBoardNanos)
+                - (arrivalNanos - lastArrivalNanos)) > JUMP_NANOS) {
+            if (started) {
+                Log.d(TAG, "Board clock jumped, starting over.");
+                ++restarts;
+            }
+            started = true;
+            // Count wraps from here.
+            wraps = 0;
+            boardNanos = micros * 1000;
+            offset = arrivalNanos - boardNanos;
+            restart(boardNanos, offset);
+        }
+        lastBoardNanos = boardNanos;
+        lastArrivalNanos = arrivalNanos;
+
+        if (offset < windowMinOffset) {
+            windowMinOffset = offset;
+            windowMinBoardNanos = boardNanos;
+        }
+        if (boardNanos - windowStart >= WINDOW_NANOS) {
+            if (havePrevious && windowMinBoardNanos != prevMinBoardNanos) {
+                double measured = (double)(windowMinOffset - prevMinOffset)
+                        / (windowMinBoardNanos - prevMinBoardNanos);
+                drift += DRIFT_GAIN * (measured - drift);
+            }
+            prevMinOffset = windowMinOffset;
+            prevMinBoardNanos = windowMinBoardNanos;
+            havePrevious = true;
+            anchorOffset = windowMinOffset;
+            anchorBoardNanos = windowMinBoardNanos;
+            windowStart = boardNanos;
+            windowMinOffset = Long.MAX_VALUE;
+        }
+
+        long phoneNanos = boardNanos + anchorOffset
+                + (long)(drift * (boardNanos - anchorBoardNanos));
+        if (phoneNanos > arrivalNanos) {
+            // This frame got here faster than any lately -- it's our best
+            // measure of the offset now.
+            anchorOffset = offset;
+            anchorBoardNanos = boardNanos;
+            phoneNanos = arrivalNanos;
+        }
+        return phoneNanos;
+    }
+
+    /** Forget what we knew about the offset and drift, and start from a
+     *  frame with the given board time and offset. */
+    private void restart(long boardNanos, long offset) {
+        anchorOffset = offset;
+        anchorBoardNanos = boardNanos;
+        drift = 0;
+        windowStart = boardNanos;
+        windowMinOffset = Long.MAX_VALUE;
+        havePrevious = false;
+    }
+
+    /** Board clock's drift against ours, in parts per million. Positive if
+     *  the board's clock is slow. */
+    public double getDriftPpm() {
+        return drift * 1e6;
+    }
+
+    /** Phone time minus board time, in ns, at the last minimum. */
+    public long getOffsetNanos() {
+        return anchorOffset;
+    }
+}
@@ -0,0 +1,364 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Stands in for a board, connecting to ArduinoComm's port like the real one
+ * and sending it $PRSO and $GPGGA sentences, so the comm stack can be loaded
+ * far harder, and for far longer, than the mock_sensors sketch can manage.
+ *
+ * The rate, the mix of sentences, and how they're bunched are all settable:
+ * sentences go out in bursts of setBurst() frames, back to back in one
+ * write, with the bursts spaced to give setRate() frames per second overall,
+ * or as fast as the socket will take them if the rate is 0. Sentence values
+ * change from frame to frame, so the parser sees varied input, and a $PRSO
+ * can carry a checksum. Frames are built straight into a reused buffer, so
+ * the simulator's own garbage doesn't cloud measurements of ours.
+ *
+ * Commands are read on a second thread, and each is answered with
+ * $ECHO,<target>,<value> if echo is on, as the sketch's processCommand does.
+ * Like a sketch with no binary support, we ignore COMMAND_FRAMING and keep
+ * sending text.
+ *
+ * Run this on its own thread; stop() ends it.
+ *
+ * @author Pat Tressel
+ */
+public class BoardSimulator implements Runnable {
+    public static final String TAG = "BoardSimulator";
+
+    /** PRSO sensor types we send, with how many values each has. */
+    private static final int[][] PRSO_SENSORS = {
+        {Constants.SENSOR_LASER_RANGE_FINDER, 1},
+        {Constants.SENSOR_OPTICAL_FLOW, 5},
+        {Constants.SENSOR_SONAR, 1},
+        {Constants.SENSOR_BUMPER, 1},
+    };
+
+    private final InetSocketAddress address;
+    private SocketChannel channel;
+    private volatile boolean running = true;
+
+    // Settings. Set these before starting.
+    private double rate = 100;
+    private int burst = 1;
+    private int prsoWeight = 6;
+    private int gpsWeight = 1;
+    private boolean checksums = true;
+    private boolean echo = true;
+    private int helloBoard = Constants.BOARD_UNIDENTIFIED;
+    private int[] helloTargets = new int[0];
+
+    /** Frames of the current burst. */
+    private final ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+    /** Replies to commands. Only the command thread uses this. */
+    private final ByteBuffer reply = ByteBuffer.allocate(Constants.MAX_MESSAGE_LEN);
+    /** Counts up with each frame, to vary the values. */
+    private int sequence = 0;
+    /** Where we are in the mix -- see nextIsGps. */
+    private int mixError = 0;
+
+    // What we've done. Written by one thread each, read by anyone.
+    public volatile long framesSent = 0;
+    public volatile long bytesSent = 0;
+    public volatile long commandsReceived = 0;
+    public volatile long echoesSent = 0;
+    /** Bytes skipped because they didn't line up with a command. */
+    public volatile long commandSkips = 0;
+    /** Sequence numbers acked -- see ArduinoOut.setSequencing. */
+    public volatile long acksSent = 0;
+
+    public BoardSimulator(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    /** Connect to ArduinoComm on this machine. */
+    public BoardSimulator() {
+        this(new InetSocketAddress("127.0.0.1", Constants.SERVER_PORT));
+    }
+
+    /** Frames per second, on average, or 0 to send as fast as we can. */
+    public void setRate(double framesPerSecond) {
+        rate = framesPerSecond;
+    }
+
+    /** Frames sent back to back in one write. */
+    public void setBurst(int frames) {
+        burst = Math.max(1, frames);
+    }
+
+    /** Relative numbers of $PRSO and $GPGGA sentences. */
+    public void setMix(int prso, int gps) {
+        prsoWeight = prso;
+        gpsWeight = gps;
+    }
+
+    /** Whether $PRSO sentences carry a checksum. $GPGGA always does. */
+    public void setChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    /** Whether to answer each command with $ECHO. */
+    public void setEcho(boolean echo) {
+        this.echo = echo;
+    }
+
+    /** Send a hello first, as board id owning targets. Without one, we're
+     *  taken to be DEFAULT_BOARD, owning whatever nobody else does. */
+    public void setHello(int board, int[] targets) {
+        helloBoard = board;
+        helloTargets = targets;
+    }
+
+    /** Stop sending, and close the connection. */
+    public void stop() {
+        running = false;
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) { }
+    }
+
+    public void run() {
+        try {
+            channel = SocketChannel.open(address);
+            channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not connect to " + address, e);
+            return;
+        }
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                readCommands();
+            }
+        }, TAG + "-commands");
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            if (helloBoard != Constants.BOARD_UNIDENTIFIED) {
+                out.clear();
+                appendHello();
+                send();
+            }
+            long start = System.nanoTime();
+            long bursts = 0;
+            while (running) {
+                if (rate > 0) {
+                    // Space the bursts so the average comes out right, even
+                    // if we fell behind for a while.
+                    long due = start + (long)(bursts * burst * 1e9 / rate);
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0 && running) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                out.clear();
+                for (int i = 0; i < burst; ++i) {
+                    if (out.remaining() < Constants.MAX_MESSAGE_LEN) {
+                        send();
+                        out.clear();
+                    }
+                    if (nextIsGps()) {
+                        appendGpgga();
+                    } else {
+                        appendPrso();
+                    }
+                    ++sequence;
+                }
+                send();
+                framesSent += burst;
+                ++bursts;
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.d(TAG, "Connection lost: " + e);
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    /** Write all of out. The channel blocks, so this waits if ArduinoComm
+     *  isn't keeping up. */
+    private void send() throws IOException {
+        out.flip();
+        int n = out.remaining();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        bytesSent += n;
+    }
+
+    /** Spread the $GPGGA sentences evenly through the $PRSO ones. */
+    private boolean nextIsGps() {
+        mixError += gpsWeight;
+        if (mixError * 2 >= prsoWeight + gpsWeight) {
+            mixError -= prsoWeight + gpsWeight;
+            return true;
+        }
+        return false;
+    }
+
+    private void appendHello() {
+        out.put(Constants.DOLLAR);
+        ascii(out, "PRID,");
+        decimal(out, helloBoard);
+        for (int i = 0; i < helloTargets.length; ++i) {
+            out.put(Constants.COMMA);
+            decimal(out, helloTargets[i]);
+        }
+        out.put(Constants.CR).put(Constants.LF);
+    }
+
+    /** $PRSOxnn,<values> with values that change with each frame. */
+    private void appendPrso() {
+        int[] sensor = PRSO_SENSORS[sequence % PRSO_SENSORS.length];
+        int start = out.position();
+        out.put(Constants.DOLLAR);
+        ascii(out, "PRSO");
+        out.put((byte)Character.forDigit(sensor[0], 16));
+        int which = (sequence / PRSO_SENSORS.length) % 4;
+        out.put((byte)'0').put((byte)('0' + which));
+        for (int i = 0; i < sensor[1]; ++i) {
+            out.put(Constants.COMMA);
+            decimal(out, (sequence * 7 + i * 131) & 0xffff);
+        }
+        end(start, checksums);
+    }
+
+    /** A $GPGGA fix, moving a little each time. */
+    private void appendGpgga() {
+        int start = out.position();
+        out.put(Constants.DOLLAR);
+        ascii(out, "GPGGA,");
+        decimal(out, 170000 + sequence % 6000);
+        ascii(out, ",4124.");
+        fraction(out, sequence % 10000);
+        ascii(out, ",N,08151.");
+        fraction(out, (sequence * 3) % 10000);
+        ascii(out, ",W,1,05,1.5,280.2,M,-34.0,M,,");
+        end(start, true);
+    }
+
+    /** Finish the frame that started at start, with its checksum if asked. */
+    private void end(int start, boolean checksum) {
+        if (checksum) {
+            int sum = 0;
+            for (int i = start + 1; i < out.position(); ++i) {
+                sum ^= out.get(i);
+            }
+            out.put(Constants.STAR);
+            out.put((byte)Character.toUpperCase(Character.forDigit((sum >> 4) & 0xf, 16)));
+            out.put((byte)Character.toUpperCase(Character.forDigit(sum & 0xf, 16)));
+        }
+        out.put(Constants.CR).put(Constants.LF);
+    }
+
+    /** Read commands until the connection closes, echoing each. Commands
+     *  are found the way the sketch finds them: three bytes whose last is
+     *  the CRC-8 of the first two are a command, and target 0 (the resync
+     *  marker) is ignored; any other three bytes mean we're out of step, so
+     *  we move on a byte and look again. A misaligned triple that passes
+     *  the check by chance is taken as a command, as the sketch would. A
+     *  sequence number is always acked, whether or not we echo. */
+    private void readCommands() {
+        ByteBuffer in = ByteBuffer.allocate(Constants.READ_CHUNK_LEN);
+        try {
+            while (running) {
+                if (channel.read(in) < 0) {
+                    break;
+                }
+                in.flip();
+                while (in.hasRemaining()) {
+                    if (in.remaining() < Constants.COMMAND_MESSAGE_LEN) {
+                        break;
+                    }
+                    int at = in.position();
+                    int check = FrameScanner.crc8(in.array(), in.arrayOffset() + at,
+                            Constants.COMMAND_MESSAGE_LEN - 1);
+                    if ((in.get(at + Constants.COMMAND_MESSAGE_LEN - 1) & 0xff) != check) {
+                        in.get();
+                        ++commandSkips;
+                        continue;
+                    }
+                    int target = in.get() & 0xff;
+                    int value = in.get() & 0xff;
+                    in.get();
+                    if (target == 0) {
+                        // Resync marker.
+                        continue;
+                    }
+                    if (target == Constants.COMMAND_SEQUENCE) {
+                        reply.clear();
+                        reply.put(Constants.DOLLAR);
+                        ascii(reply, "ACK,");
+                        decimal(reply, value);
+                        sendReply();
+                        ++acksSent;
+                        continue;
+                    }
+                    ++commandsReceived;
+                    if (echo && target != Constants.COMMAND_FRAMING) {
+                        reply.clear();
+                        reply.put(Constants.DOLLAR);
+                        ascii(reply, "ECHO,");
+                        decimal(reply, target);
+                        reply.put(Constants.COMMA);
+                        decimal(reply, value);
+                        sendReply();
+                        ++echoesSent;
+                    }
+                }
+                // Keep any partial command for the next read.
+                in.compact();
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.d(TAG, "Command read failed: " + e);
+            }
+        }
+    }
+
+    /** End the sentence in reply, and send it. */
+    private void sendReply() throws IOException {
+        reply.put(Constants.CR).put(Constants.LF);
+        reply.flip();
+        // A blocking write goes out whole, so this can't land in the middle
+        // of one of the sender's frames.
+        while (reply.hasRemaining()) {
+            channel.write(reply);
+        }
+    }
+
+    private static void ascii(ByteBuffer buf, String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            buf.put((byte)s.charAt(i));
+        }
+    }
+
+    /** Put a non-negative number in decimal. */
+    private static void decimal(ByteBuffer buf, int value) {
+        int div = 1;
+        while (div <= value / 10) {
+            div *= 10;
+        }
+        for (; div > 0; div /= 10) {
+            buf.put((byte)('0' + (value / div) % 10));
+        }
+    }
+
+    /** Put a number from 0 to 9999 as four digits. */
+    private static void fraction(ByteBuffer buf, int value) {
+        for (int div = 1000; div > 0; div /= 10) {
+            buf.put((byte)('0' + (value / div) % 10));
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+/**
+ * Records the raw traffic to and from the boards in a file, so it can be
+ * played back later through CaptureReplay -- to reproduce something seen in
+ * the field, or to load the parser and queues with real traffic.
+ *
+ * The file is a header, then one record per chunk read or written:
+ *   header:  MAGIC (int), VERSION (int)
+ *   record:  time (long, System.nanoTime()), kind (byte), slot (byte),
+ *            length (int), then length bytes of data
+ * all big-endian. The slot says which connection the record is for (see
+ * Board), as several boards' traffic is interleaved. Connects and
+ * disconnects are recorded too, with no data, so a replay can start each
+ * board afresh where the live code did.
+ *
+ * The file is written through a memory mapping, a segment at a time, so
+ * recording a chunk is a copy into memory, not a system call -- it's done on
+ * ArduinoComm's I/O thread, and mustn't slow it down. The OS writes the
+ * pages out in its own time. Only that thread may call record(). ArduinoComm
+ * records its traffic by reading and writing through tap(), which passes
+ * everything on to the socket.
+ *
+ * If the file reaches its size limit, or writing fails, we stop recording
+ * and say so in the log, rather than disturb the I/O.
+ *
+ * @author Pat Tressel
+ */
+public class CaptureFile {
+    public static final String TAG = "CaptureFile";
+
+    public static final int MAGIC = 0x41434150;  // "ACAP"
+    public static final int VERSION = 2;
+    public static final int HEADER_LEN = 8;
+    /** Bytes in a record before its data. */
+    public static final int RECORD_HEADER_LEN = 14;
+
+    // Record kinds.
+    /** Bytes read from the board. */
+    public static final byte KIND_IN = 1;
+    /** Bytes written to the board. */
+    public static final byte KIND_OUT = 2;
+    /** The board connected. */
+    public static final byte KIND_CONNECT = 3;
+    /** The connection was closed. */
+    public static final byte KIND_DISCONNECT = 4;
+
+    /** How much of the file we map at a time. */
+    private static final int SEGMENT_LEN = 1 << 20;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long maxLength;
+    /** The segment being written. */
+    private MappedByteBuffer segment;
+    /** Where in the file the segment starts. */
+    private long segmentStart;
+    /** Set once we've stopped recording. */
+    private boolean stopped = false;
+
+    /** Number of records written. */
+    public long records = 0;
+
+    /**
+     * Start a new capture, replacing any file of the same name.
+     *
+     * @param maxLength stop recording once the file would grow past this
+     */
+    public CaptureFile(File path, long maxLength) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        this.maxLength = maxLength;
+        segmentStart = 0;
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_LEN);
+        segment.putInt(MAGIC);
+        segment.putInt(VERSION);
+    }
+
+    /**
+     * Record a chunk of traffic, or a connect or disconnect with no data.
+     * The time is taken here.
+     */
+    public void record(byte kind, int slot, byte[] data, int offset, int length) {
+        if (stopped) {
+            return;
+        }
+        int needed = RECORD_HEADER_LEN + length;
+        if (segment.remaining() < needed && !nextSegment(needed)) {
+            return;
+        }
+        segment.putLong(System.nanoTime());
+        segment.put(kind);
+        segment.put((byte)slot);
+        segment.putInt(length);
+        if (length > 0) {
+            segment.put(data, offset, length);
+        }
+        ++records;
+    }
+
+    /** Map the next part of the file, big enough for needed bytes. */
+    private boolean nextSegment(int needed) {
+        long end = segmentStart + segment.position();
+        if (end + needed > maxLength) {
+            Log.d(TAG, "Capture file is full, no longer recording.");
+            stopped = true;
+            return false;
+        }
+        try {
+            segmentStart = end;
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart,
+                    Math.max(SEGMENT_LEN, needed));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not extend capture file, no longer recording.", e);
+            stopped = true;
+            return false;
+        }
+        return true;
+    }
+
+    /** A channel that reads and writes through the given one, and records
+     *  what it reads and writes against slot. */
+    public ByteChannel tap(ByteChannel channel, int slot) {
+        return new Tap(channel, slot);
+    }
+
+    private class Tap implements ByteChannel {
+        private final ByteChannel inner;
+        private final int slot;
+
+        Tap(ByteChannel inner, int slot) {
+            this.inner = inner;
+            this.slot = slot;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            int start = dst.position();
+            int n = inner.read(dst);
+            // Our buffers are all on the heap, so there's an array to copy.
+            if (n > 0 && dst.hasArray()) {
+                record(KIND_IN, slot, dst.array(), dst.arrayOffset() + start, n);
+            }
+            return n;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            int start = src.position();
+            int n = inner.write(src);
+            if (n > 0 && src.hasArray()) {
+                record(KIND_OUT, slot, src.array(), src.arrayOffset() + start, n);
+            }
+            return n;
+        }
+
+        public boolean isOpen() {
+            return inner.isOpen();
+        }
+
+        public void close() throws IOException {
+            inner.close();
+        }
+    }
+
+    /** Length of what has been recorded so far. */
+    public long length() {
+        return segmentStart + segment.position();
+    }
+
+    /** Flush the file, trim off the unused part of the last segment, and
+     *  close it. */
+    public void close() {
+        try {
+            long end = length();
+            segment.force();
+            channel.truncate(end);
+            file.close();
+        } catch (IOException e) {
+            Log.d(TAG, "close() threw IOException", e);
+        }
+        stopped = true;
+    }
+}
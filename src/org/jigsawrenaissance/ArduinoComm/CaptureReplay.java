@@ -0,0 +1,140 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Plays back a file recorded by CaptureFile, feeding what was read from the
+ * boards through ArduinoIn as though it were arriving now. Each connection
+ * in the capture gets a Board of its own, as it did live. This replaces
+ * the board for offline testing: the parser, queues and controller see the
+ * same bytes, split into the same chunks, as they did live.
+ *
+ * Playback can keep the recorded timing (speed 1), run faster or slower
+ * (speed 10 replays ten seconds of traffic per second), or go as fast as
+ * possible (speed 0), e.g. to load-test the input path. What was written to
+ * the board is skipped -- that is our own output -- but counted.
+ *
+ * The file is mapped read-only, so it must be under 2GB.
+ *
+ * @author Pat Tressel
+ */
+public class CaptureReplay implements Runnable {
+    public static final String TAG = "CaptureReplay";
+
+    private final MappedByteBuffer data;
+    private final ArduinoIn in;
+    private final double speed;
+    /** The boards, by the slot their connection had. */
+    private final Board[] boards = new Board[256];
+    /** Chunk to copy each record into, so it goes in as it was read. */
+    private final byte[] chunk = new byte[Constants.READ_CHUNK_LEN];
+
+    // What we've played back so far.
+    public long chunksIn = 0;
+    public long bytesIn = 0;
+    public long chunksOut = 0;
+    public long connects = 0;
+
+    /**
+     * @param path a file written by CaptureFile
+     * @param in where to send the input
+     * @param speed multiple of the recorded rate, or 0 for as fast as
+     *  possible
+     */
+    public CaptureReplay(File path, ArduinoIn in, double speed) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // The mapping stays valid after the file is closed.
+            file.close();
+        }
+        if (data.remaining() < CaptureFile.HEADER_LEN
+                || data.getInt() != CaptureFile.MAGIC) {
+            throw new IOException("Not a capture file: " + path);
+        }
+        int version = data.getInt();
+        if (version != CaptureFile.VERSION) {
+            throw new IOException("Capture file version " + version + " not supported: " + path);
+        }
+        this.in = in;
+        this.speed = speed;
+    }
+
+    /** Play the whole file, then return. */
+    public void run() {
+        boolean started = false;
+        long firstNanos = 0;
+        long startNanos = System.nanoTime();
+        while (data.remaining() >= CaptureFile.RECORD_HEADER_LEN) {
+            long recorded = data.getLong();
+            byte kind = data.get();
+            int slot = data.get() & 0xff;
+            int length = data.getInt();
+            if (length < 0 || length > data.remaining()) {
+                Log.d(TAG, "Capture file is truncated, stopping.");
+                break;
+            }
+            if (!started) {
+                firstNanos = recorded;
+                started = true;
+            }
+            if (speed > 0) {
+                // Wait until this record is due.
+                long due = startNanos + (long)((recorded - firstNanos) / speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            switch (kind) {
+            case CaptureFile.KIND_IN:
+                // Same chunking as live, so frames straddle reads as they did.
+                if (boards[slot] == null) {
+                    boards[slot] = new Board(in, slot);
+                }
+                for (int left = length; left > 0; ) {
+                    int n = Math.min(left, chunk.length);
+                    data.get(chunk, 0, n);
+                    in.process(boards[slot], chunk, 0, n);
+                    left -= n;
+                }
+                ++chunksIn;
+                bytesIn += length;
+                break;
+            case CaptureFile.KIND_OUT:
+                skip(length);
+                ++chunksOut;
+                break;
+            case CaptureFile.KIND_CONNECT:
+            case CaptureFile.KIND_DISCONNECT:
+                // As ArduinoComm does, start over with a new Board, so any
+                // partial frame is dropped, and the board identifies itself
+                // again.
+                if (kind == CaptureFile.KIND_CONNECT) {
+                    ++connects;
+                }
+                boards[slot] = new Board(in, slot);
+                skip(length);
+                break;
+            default:
+                skip(length);
+                break;
+            }
+        }
+        Log.d(TAG, "Replay done, " + chunksIn + " chunks, " + bytesIn + " bytes in "
+                + (System.nanoTime() - startNanos) / 1000000 + " ms");
+    }
+
+    private void skip(int length) {
+        data.position(data.position() + length);
+    }
+}
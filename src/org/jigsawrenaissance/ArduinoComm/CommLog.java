@@ -0,0 +1,155 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+/**
+ * Logging for the hot paths -- PoolQueue, ArduinoIn, ArduinoOut -- that
+ * costs nothing when it's off, and very little when it's on.
+ *
+ * Call sites look like:
+ *   if (CommLog.TRACE) CommLog.trace(CommLog.SEND, m.type, m.which);
+ * TRACE is a compile-time constant, so when it is false the compiler drops
+ * the whole statement. When it is true, trace() stores the event code and its
+ * two int arguments, with a timestamp, in a preallocated ring -- no strings
+ * are built and nothing is allocated on the calling thread. A Dumper thread
+ * formats the events and writes them to the Android log in the background.
+ * If it falls behind, the oldest events are overwritten, and it reports how
+ * many it missed.
+ *
+ * For messages that are rare (connects, errors), just use Log directly.
+ *
+ * @author Pat Tressel
+ */
+public final class CommLog {
+    public static final String TAG = "CommLog";
+
+    /** Set true to trace the hot paths. */
+    public static final boolean TRACE = false;
+
+    // Event codes. Each has an entry in FORMATS.
+    public static final int OBTAIN = 0;
+    public static final int OBTAIN_NEW = 1;
+    public static final int OBTAIN_WAIT = 2;
+    public static final int GIVEBACK = 3;
+    public static final int READ = 4;
+    public static final int POLL = 5;
+    public static final int SEND = 6;
+    public static final int SEND_DISCARD = 7;
+    public static final int CHUNK = 8;
+    public static final int BAD_CHECKSUM = 9;
+    public static final int UNKNOWN_FRAME = 10;
+    public static final int MALFORMED_FRAME = 11;
+    public static final int QUEUE_FULL = 12;
+    public static final int COMMAND = 13;
+    public static final int BAD_CRC = 14;
+    public static final int OVERRUN = 15;
+    public static final int RESYNC = 16;
+
+    /** What each event means. The two arguments are appended in order. */
+    private static final String[] FORMATS = {
+        "PoolQueue obtain, messages created:",
+        "PoolQueue made a new message, count is",
+        "PoolQueue at max count of messages, waiting for a return, count is",
+        "PoolQueue giveback, type:",
+        "PoolQueue read, type, which:",
+        "PoolQueue poll, type, which:",
+        "PoolQueue send, type, which:",
+        "PoolQueue removed queued message, type, which:",
+        "ArduinoIn read bytes:",
+        "ArduinoIn bad checksum, dropping message, length, checksum:",
+        "ArduinoIn unknown message, dropping, length:",
+        "ArduinoIn malformed message, dropping, type, which:",
+        "ArduinoIn queue full, snapshot only, type, which:",
+        "ArduinoOut got command, type, value:",
+        "FrameScanner bad binary frame, dropping, type, which:",
+        "FrameScanner frame too long, dropping, length:",
+        "FrameScanner '$' inside frame, dropping it and resyncing, length:",
+    };
+
+    /** Events kept. Must be a power of two. */
+    private static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final long[] times = new long[CAPACITY];
+    private static final int[] events = new int[CAPACITY];
+    private static final int[] args1 = new int[CAPACITY];
+    private static final int[] args2 = new int[CAPACITY];
+    /** Number of the event in each slot, plus one, set after its fields. */
+    private static final AtomicLongArray written = new AtomicLongArray(CAPACITY);
+    /** Number of the next event to be traced. */
+    private static final AtomicLong next = new AtomicLong(0);
+
+    private CommLog() {
+    }
+
+    /** Record an event. Safe from any thread. */
+    public static void trace(int event, int arg1, int arg2) {
+        long n = next.getAndIncrement();
+        int slot = (int)n & MASK;
+        times[slot] = System.nanoTime();
+        events[slot] = event;
+        args1[slot] = arg1;
+        args2[slot] = arg2;
+        written.lazySet(slot, n + 1);
+    }
+
+    /**
+     * Writes traced events to the Android log, in the background. Start it
+     * on its own low-priority thread if TRACE is on.
+     */
+    public static class Dumper implements Runnable {
+        /** Number of the next event to write out. */
+        private long cursor = 0;
+        private final StringBuilder text = new StringBuilder(200);
+
+        public void run() {
+            while (true) {
+                if (drain() == 0) {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /** Log the events traced since the last drain. Returns how many. */
+        public int drain() {
+            long end = next.get();
+            if (end - cursor > CAPACITY) {
+                Log.d(TAG, "Trace overran, missed " + (end - cursor - CAPACITY) + " events");
+                cursor = end - CAPACITY;
+            }
+            int done = 0;
+            while (cursor < end) {
+                int slot = (int)cursor & MASK;
+                if (written.get(slot) != cursor + 1) {
+                    // Not finished yet, or already overwritten. Come back
+                    // later for the former; skip the latter.
+                    if (written.get(slot) < cursor + 1) {
+                        break;
+                    }
+                    ++cursor;
+                    continue;
+                }
+                long time = times[slot];
+                int event = events[slot];
+                int arg1 = args1[slot];
+                int arg2 = args2[slot];
+                if (written.get(slot) == cursor + 1 && event >= 0 && event < FORMATS.length) {
+                    text.setLength(0);
+                    text.append(time / 1000).append(' ').append(FORMATS[event])
+                        .append(' ').append(arg1).append(' ').append(arg2);
+                    Log.d(TAG, text.toString());
+                    ++done;
+                }
+                ++cursor;
+            }
+            return done;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import java.io.IOException;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.util.Log;
+
+/**
+ * Hosts the comm stack -- ArduinoComm, ArduinoIn, ArduinoOut and their
+ * threads -- for as long as the app runs, rather than for as long as an
+ * activity is in front. It's set up once, in onCreate, and is ready before
+ * the board connects: both queues are filled with messages, and the rings,
+ * outboxes and scanners are allocated, so the first frame costs no more
+ * than the thousandth. The I/O and decoder threads run at raised priority.
+ *
+ * Activities bind to us to get at the queues, the snapshot and the metrics
+ * (see LocalBinder), and unbind when they pause. That costs nothing here --
+ * the stack carries on, and the controller keeps getting sensor data, while
+ * no activity is showing. The activity that starts us stops us when it
+ * finishes.
+ *
+ * How long it took from onCreate to the first sensor message being queued
+ * is in getStartupNanos(), and in the metrics as service.firstMessageMs.
+ *
+ * @author Pat Tressel
+ */
+public class CommService extends Service {
+    public static final String TAG = "CommService";
+
+    /** What a bound activity gets -- a way to reach us in-process. */
+    public class LocalBinder extends Binder {
+        public CommService getService() {
+            return CommService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+
+    private ArduinoComm comm;
+    private ArduinoIn in;
+    private ArduinoOut out;
+    private final Metrics metrics = new Metrics();
+    private MetricsReporter reporter;
+    private MockController mockController;
+    /** When onCreate started, by System.nanoTime(). */
+    private long startNanos;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        startNanos = System.nanoTime();
+        Log.d(TAG, "In onCreate");
+
+        // This no longer waits for the board to connect -- that happens on
+        // ArduinoComm's own thread.
+        try {
+            comm = new ArduinoComm();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not set up communication with the Arduino", e);
+            stopSelf();
+            return;
+        }
+
+        // @Debug: To record the board's traffic, for replay with
+        // CaptureReplay, uncomment this.
+        //try {
+        //    comm.setCapture(new CaptureFile(
+        //            new File(getExternalFilesDir(null), "capture.bin"), 64L << 20));
+        //} catch (IOException e) {
+        //    Log.e(TAG, "Could not open capture file", e);
+        //}
+
+        out = new ArduinoOut(comm);
+        // Ask for binary sensor frames -- they are about a third smaller,
+        // and need no parsing. If the sketch doesn't support them, it will
+        // keep sending text, which we also accept.
+        out.setFraming(Constants.FRAMING_BINARY);
+        // With a sketch that acks sequence numbers, as mock_sensors does,
+        // this gives each command's round trip time, and counts any that
+        // don't get there:
+        //out.setSequencing(true);
+
+        // @Debug: To replay a capture instead of talking to the board,
+        // use ArduinoIn(PoolQueue), don't start the I/O thread, and run
+        // new CaptureReplay(file, in, 1.0) on a thread of its own.
+        in = new ArduinoIn(comm, Constants.DECODE_THREADS);
+        in.setDecoderPriority(Constants.DECODE_THREAD_PRIORITY);
+
+        // A controller that wants the sensors smoothed and thinned out can
+        // have ArduinoIn do it, e.g.:
+        //in.setFilter(Constants.SENSOR_SONAR, -1, Constants.FILTER_MEDIAN, 5, 1);
+        //in.setFilter(Constants.SENSOR_LASER_RANGE_FINDER, -1, Constants.FILTER_MIN, 10, 5);
+        //in.setFilter(Constants.SENSOR_OPTICAL_FLOW, -1, Constants.FILTER_DELTA, 2, 10);
+
+        // Make all the messages now, while nothing is waiting on them.
+        in.getQueue().prefill();
+        out.getQueue().prefill();
+
+        // @Debug: For testing with the mock_sensors sketch, include
+        // MockController. It never returns, so don't let it keep us alive.
+        mockController = new MockController(in.getQueue(), out.getQueue());
+        Thread controlThread = new Thread(null, mockController, MockController.TAG);
+        controlThread.setDaemon(true);
+        Log.d(TAG, "About to start mock controller.");
+        controlThread.start();
+
+        // If tracing is compiled in, write the trace to the log in the
+        // background.
+        if (CommLog.TRACE) {
+            Thread traceThread = new Thread(null, new CommLog.Dumper(), CommLog.TAG);
+            traceThread.setPriority(Thread.MIN_PRIORITY);
+            traceThread.setDaemon(true);
+            traceThread.start();
+        }
+
+        // Serve the link and queue health on a loopback port, for charting
+        // while the rover runs. To keep them in a file instead, use
+        // new MetricsReporter(metrics, new File(getExternalFilesDir(null),
+        // "metrics.txt"), 1000).
+        comm.registerMetrics(metrics);
+        metrics.add("service.firstMessageMs", new Metrics.Gauge() {
+            public long read() {
+                long nanos = getStartupNanos();
+                return (nanos < 0) ? -1 : nanos / 1000000;
+            }
+        });
+        reporter = new MetricsReporter(metrics, Constants.METRICS_PORT);
+        Thread metricsThread = new Thread(null, reporter, MetricsReporter.TAG);
+        metricsThread.setPriority(Thread.MIN_PRIORITY);
+        metricsThread.setDaemon(true);
+        metricsThread.start();
+
+        // One thread does all the socket I/O, for both ArduinoIn and
+        // ArduinoOut.
+        Thread commThread = new Thread(null, comm, ArduinoComm.TAG);
+        commThread.setPriority(Constants.IO_THREAD_PRIORITY);
+        Log.d(TAG, "About to start I/O thread");
+        commThread.start();
+
+        // @Debug: To load the app without a board, uncomment this -- it
+        // connects over loopback and sends sentences at the given rate.
+        //BoardSimulator simulator = new BoardSimulator();
+        //simulator.setRate(1000);
+        //new Thread(null, simulator, BoardSimulator.TAG).start();
+
+        Log.d(TAG, "Comm stack started in "
+                + (System.nanoTime() - startNanos) / 1000 + " us");
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Run until we're stopped, whether or not anyone is bound. If we're
+        // killed for memory, come back.
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "In onDestroy");
+        if (mockController != null) {
+            mockController.stop();
+        }
+        if (comm != null) {
+            // The I/O thread closes the sockets and stops the decoders on
+            // its way out. This waits for it, so a new instance of us can
+            // open the port again.
+            comm.shutdown();
+        }
+        if (reporter != null) {
+            reporter.stop();
+        }
+        super.onDestroy();
+    }
+
+    /** The stack's input side, or null if it couldn't be started. */
+    public ArduinoIn getIn() {
+        return in;
+    }
+
+    /** The stack's output side, or null if it couldn't be started. */
+    public ArduinoOut getOut() {
+        return out;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /** Time from onCreate to the first sensor message being queued, or -1
+     *  if there hasn't been one yet. */
+    public long getStartupNanos() {
+        long first = (in != null) ? in.getFirstMessageNanos() : 0;
+        return (first == 0) ? -1 : first - startNanos;
+    }
+}
@@ -9,15 +9,56 @@ public class Constants {
     // Port we're using for communication with the Arduino.
     // @ToDo: Could there be a conflict with this choice of port?
     public static final int SERVER_PORT = 6000;
+    /** Loopback port MetricsReporter serves snapshots on. */
+    public static final int METRICS_PORT = 6001;
+    
+    /** Most boards we'll talk to at once. Board ids run from 0 to one less
+     *  than this. */
+    public static final int MAX_BOARDS = 4;
+    /** Board id of a connection that hasn't yet said which board it is. */
+    public static final int BOARD_UNIDENTIFIED = -1;
+    /** Id of a board that starts sending without a hello -- e.g. a sketch
+     *  written before there were several boards. Such a board also takes
+     *  the command targets no other board has claimed. */
+    public static final int DEFAULT_BOARD = 0;
     
     /** Max expected length of a single transmission to or from the Arduino.
      *  If messages get buffered into large collection, that may mean we're not
      *  getting them in a timely manner. */
     public static final int MAX_MESSAGE_LEN = 500;
     
-    /** Length of one command message. */
+    /** If we hear nothing from the board for this long, assume the link is
+     *  dead and wait for it to reconnect. The board sends sensor data
+     *  continually, so this can be a lot longer than its longest pause. */
+    public static final int INPUT_TIMEOUT_MS = 2000;
+    
+    /** Longest ArduinoComm.shutdown waits for the I/O thread to close the
+     *  sockets. */
+    public static final int SHUTDOWN_TIMEOUT_MS = 1000;
+    
+    /** Size of the chunks we read from the Arduino. This only needs to be
+     *  large enough to take whatever has arrived in one read -- frames that
+     *  straddle chunks are reassembled by FrameScanner. */
+    public static final int READ_CHUNK_LEN = 1024;
+    
+    /** Length of one command message: target, value, and the CRC-8 of
+     *  those two (see FrameScanner.crc8). A board that has lost its place
+     *  (e.g. a byte was dropped) takes three bytes that straddle two
+     *  commands, whose last byte is the check of neither; it drops a byte
+     *  and tries again from the next. A misaligned triple can still pass
+     *  the check by chance, about one time in 256, and is then taken as a
+     *  command. */
     public static final int COMMAND_MESSAGE_LEN = 3;
     
+    /** Length of the resync marker, all zero bytes, that ArduinoOut writes
+     *  ahead of each batch of commands. Three zeros are a command to target
+     *  0, whose check is 0, and no target is 0, so a board in step ignores
+     *  them. One that is out of step when the marker arrives almost always
+     *  finds its place on the zeros -- but a chance match (see
+     *  COMMAND_MESSAGE_LEN) can carry it past them, and then it's in step
+     *  again only when a later check fails or a later marker lines up. */
+    public static final int COMMAND_RESYNC_LEN = 3;
+    
     /** Max number of values in one message. This must match the number of
      *  valX fields in ArduinoMessage. */
     public static final int MAX_MESSAGE_VALUES = 20;
@@ -41,6 +82,11 @@ public class Constants {
     // The optional <cksum> is the XOR of the bytes between $ and *, exclusive,
     // encoded as two hex digits.
     //
+    // A board may say when it took the reading, by its own clock, with
+    // @<micros> after the last argument (before any *), where micros is its
+    // micros() counter in decimal. ArduinoIn converts that to phone time --
+    // see BoardClock.
+    //
     // See description of input format at:
     // ...
     // @ToDo: Push sensor and motor message format to Github.
@@ -54,10 +100,29 @@ public class Constants {
     public static final byte UPPER_I = 'I';
     public static final byte LOWER_I = 'i';
     public static final byte COMMA = ',';
+    public static final byte AT = '@';
     
-    // @ToDo: Add constants for NMEA parsing and for identification of
-    // specific messages. For preference, supply message formats so the
-    // parser can be driven off a table of message prefixes and formats.
+    // Binary frames, which the board sends instead of text if asked. See
+    // FrameScanner for the layout.
+    /** First byte of a binary frame. Not ASCII, so it can't start a text
+     *  frame. */
+    public static final int BINARY_SYNC = 0xA5;
+    /** Bits of the count byte that hold the number of values. */
+    public static final int BINARY_COUNT_MASK = 0x1F;
+    /** Bit of the count byte that says the values are 32 bits. */
+    public static final int BINARY_WIDE = 0x80;
+    /** Bit of the count byte that says the values are followed by the
+     *  board's micros() when it took the reading, 32 bits little-endian. */
+    public static final int BINARY_STAMPED = 0x40;
+    
+    /** Time for one byte to cross the link from the board, in ns, used to
+     *  work out when a frame that arrived in the middle of a chunk started.
+     *  Over ADB on USB this is negligible. For a serial link it's 10 bit
+     *  times, e.g. 86806 at 115200 baud. */
+    public static final long LINK_BYTE_NANOS = 0;
+    
+    // The message prefixes and the formats of their fields are given in the
+    // table in MessageFormat, which drives MessageDecoder.
     
     // These chars end tokens.
     public static final byte[] BREAK_SET = {CR, COMMA, STAR};
@@ -69,20 +134,117 @@ public class Constants {
     public static final int SENSOR_BUMPER = 4;
     public static final int SENSOR_GPS = 5;
     
+    // Which values for SENSOR_GPS, one per NMEA sentence we decode.
+    public static final int GPS_FIX = 1;          // $GPGGA
+    public static final int GPS_RECOMMENDED = 2;  // $GPRMC
+    
     // Sensor type codes for phone sensors.
     public static final int SENSOR_PHONE_GPS = 10;
     public static final int SENSOR_COMPASS = 11;
     public static final int SENSOR_VISION = 12;
     
+    /** Not a sensor -- a board sending back a command it got, with $ECHO.
+     *  See MessageFormat.ECHO. */
+    public static final int BOARD_ECHO = 13;
+    /** Not a sensor -- a board acknowledging sequenced commands, with $ACK.
+     *  See MessageFormat.ACK. */
+    public static final int BOARD_ACK = 14;
+    /** Not a sensor -- a board saying which board it is, and which command
+     *  targets it owns, with $PRID. See MessageFormat.PRID. */
+    public static final int BOARD_HELLO = 15;
+    
     // Command message types
     public static final int COMMAND_STEERING = 1;
     public static final int COMMAND_THROTTLE = 2;
     public static final int COMMAND_TURRET_PAN = 3;
     public static final int COMMAND_TURRET_TILT = 4;
     
+    /** Not a device -- tells the board which framing to send sensor data
+     *  in, one of the FRAMING_ values. A board that doesn't know this target
+     *  ignores it, and carries on sending text. */
+    public static final int COMMAND_FRAMING = 255;
+    public static final int FRAMING_TEXT = 0;
+    public static final int FRAMING_BINARY = 1;
+    
+    /** Not a device -- the value is a sequence number, 0 to 255, for the
+     *  commands ahead of it in the same write. A board that knows this
+     *  target acts on those commands, then acks with $ACK,<seq>; one that
+     *  doesn't ignores it. See ArduinoOut.setSequencing. */
+    public static final int COMMAND_SEQUENCE = 254;
+    /** Most sequenced writes ArduinoOut tracks, per board, until they're
+     *  acked. A power of two, and well under 256, so sequence numbers in
+     *  the window can't be mistaken for each other. */
+    public static final int COMMAND_WINDOW = 16;
+    
+    /** Command targets are sent as one byte, so there can be no more than
+     *  this many. */
+    public static final int MAX_COMMAND_TARGETS = 256;
+    
     // Suggested message transfer queue limits.
     // @ToDo: Provide a way to alert the control module if (e.g.) the out queue
     // is backing up.
     public static final int IN_QUEUE_MAX = 100;
     public static final int OUT_QUEUE_MAX = 100;
+    /** Messages kept back for the urgent lane, on top of the limits above,
+     *  so urgent traffic gets through when the normal lane is backed up. */
+    public static final int IN_QUEUE_URGENT = 10;
+    public static final int OUT_QUEUE_URGENT = 10;
+    
+    // PoolQueue lanes. A reader gets messages in the highest numbered lane
+    // first.
+    public static final int LANE_NORMAL = 0;
+    public static final int LANE_URGENT = 1;
+    public static final int NUM_LANES = 2;
+    
+    // What a PoolQueue does when a sender needs a message and its pool is
+    // empty. See PoolQueue.setPolicy.
+    /** Wait for the reader to give one back. */
+    public static final int POLICY_BLOCK = 0;
+    /** Take back the oldest unread message, and drop it. */
+    public static final int POLICY_DROP_OLDEST = 1;
+    /** Drop the message being sent. */
+    public static final int POLICY_DROP_NEWEST = 2;
+    /** A message replaces any unread one with the same type and which; if
+     *  the pool is still empty, drop the message being sent. */
+    public static final int POLICY_CONFLATE = 3;
+    
+    // Keeping the board's commands fresh -- see ArduinoOut.
+    /** How often the throttle and steering are sent again, in ms, even if
+     *  they haven't changed. */
+    public static final int COMMAND_REFRESH_MS = 100;
+    /** Length of a tick of ArduinoOut's timer wheel, in ms, and the number of
+     *  ticks in a turn. */
+    public static final int TIMER_TICK_MS = 5;
+    public static final int TIMER_SLOTS = 256;
+    
+    /** Longest the controller waits for a command message, in ms. Commands
+     *  are coalesced anyway, so waiting long for a stale one is pointless. */
+    public static final int OUT_QUEUE_WAIT_MS = 100;
+    
+    /** Threads that decode sensor frames, so the I/O thread needn't. 0 to
+     *  decode on the I/O thread. See ArduinoIn. */
+    public static final int DECODE_THREADS = 1;
+    /** Frames each decoder thread can fall behind by before the I/O thread
+     *  drops them. */
+    public static final int FRAME_RING_SLOTS = 256;
+    
+    /** Priorities CommService gives the I/O thread and the decoder threads.
+     *  Android maps Java priorities to nice values, and MAX_PRIORITY gets
+     *  about what the display does, so the UI and background work don't
+     *  hold up the sensors or the commands. */
+    public static final int IO_THREAD_PRIORITY = Thread.MAX_PRIORITY;
+    public static final int DECODE_THREAD_PRIORITY = Thread.MAX_PRIORITY - 1;
+    
+    // Filters ArduinoIn can apply to a sensor's readings before they're
+    // queued. See SensorFilters.
+    public static final int FILTER_NONE = 0;
+    public static final int FILTER_MEDIAN = 1;
+    public static final int FILTER_MIN = 2;
+    public static final int FILTER_DELTA = 3;
+    /** Longest window a filter may take. */
+    public static final int MAX_FILTER_WINDOW = 64;
+    
+    /** Number of distinct sensors, over all boards, SensorSnapshot keeps
+     *  the newest reading of. */
+    public static final int SNAPSHOT_SLOTS = 32 * MAX_BOARDS;
 }
@@ -0,0 +1,149 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import android.os.SystemClock;
+
+/**
+ * The second half of ArduinoIn: turns frames into ArduinoMessages and queues
+ * them for the controller. ArduinoIn does the framing on the I/O thread, and
+ * either calls decodeText or decodeValues directly, or, if decoding has
+ * threads of its own, copies the frame into this stage's FrameRing, and
+ * run() takes it from there.
+ *
+ * Each stage has its own decoder, and its own spare and scratch messages,
+ * so stages share nothing but the sensor queue, the snapshot, the filters
+ * and the latency stats, which can take several writers. ArduinoIn sends
+ * all the frames from any one sensor to the same stage, so each sensor's
+ * messages are still queued in the order they arrived.
+ *
+ * @author Pat Tressel
+ */
+class DecodeStage implements Runnable {
+    public static final String TAG = "DecodeStage";
+
+    private final PoolQueue sensorQueue;
+    private final SensorSnapshot snapshot;
+    private final LatencyStats ingestLatency;
+    private final SensorFilters filters;
+
+    /** Frames waiting for us, or null if we're called directly. */
+    final FrameRing ring;
+
+    /** Turns frames into messages. Only its parse errors are counted here --
+     *  ArduinoIn checks the checksum and matches the format before the
+     *  frame gets to us. */
+    final MessageDecoder decoder = new MessageDecoder();
+
+    /** A message we obtained but couldn't use, because the frame didn't
+     *  decode. We hang onto it for the next frame rather than give it back,
+     *  as giveback is for the reader's end of the queue. */
+    private ArduinoMessage spare = null;
+
+    /** Where we decode a message when the queue has no messages free. */
+    private final ArduinoMessage scratch = new ArduinoMessage();
+
+    /** Count of messages not queued because the controller had all of the
+     *  queue's messages that their lane may use. The queue counts them by
+     *  type. */
+    volatile int dropped = 0;
+
+    /** When we queued our first message, by System.nanoTime(), or 0 if we
+     *  haven't yet. */
+    volatile long firstNanos = 0;
+
+    DecodeStage(PoolQueue sensorQueue, SensorSnapshot snapshot,
+            LatencyStats ingestLatency, SensorFilters filters, FrameRing ring) {
+        this.sensorQueue = sensorQueue;
+        this.snapshot = snapshot;
+        this.ingestLatency = ingestLatency;
+        this.filters = filters;
+        this.ring = ring;
+    }
+
+    /** Decode frames from the ring until interrupted. */
+    public void run() {
+        FrameRing.Slot s;
+        while ((s = ring.take()) != null) {
+            if (s.format != null) {
+                decodeText(s.format, s.frame, s.end, s.board, s.frameNanos, s.sampleNanos);
+            } else {
+                decodeValues(s.type, s.which, s.values, s.count, s.boardMicros,
+                        s.board, s.frameNanos, s.sampleNanos);
+            }
+            ring.release();
+        }
+    }
+
+    /** Decode a text frame, which has matched format, and queue it. */
+    void decodeText(MessageFormat format, byte[] frame, int end, int board,
+            long frameNanos, long sampleNanos) {
+        // Get an empty message, unless we have one left over from a message
+        // that failed to decode.
+        if (spare == null) {
+            spare = sensorQueue.tryObtain();
+        }
+        ArduinoMessage m = (spare != null) ? spare : scratch;
+        if (!decoder.decode(format, frame, end, m)) {
+            if (CommLog.TRACE) CommLog.trace(CommLog.MALFORMED_FRAME, m.type, m.which);
+            return;
+        }
+        deliver(m, board, frameNanos, sampleNanos);
+    }
+
+    /** Copy a binary frame's values into a message, and queue it. */
+    void decodeValues(int type, int which, int[] values, int count,
+            long boardMicros, int board, long frameNanos, long sampleNanos) {
+        if (spare == null) {
+            spare = sensorQueue.tryObtain();
+        }
+        ArduinoMessage m = (spare != null) ? spare : scratch;
+        m.type = type;
+        m.which = which;
+        m.boardMicros = boardMicros;
+        m.nvals = count;
+        for (int i = 0; i < count; ++i) {
+            m.setValue(i + 1, values[i]);
+        }
+        deliver(m, board, frameNanos, sampleNanos);
+    }
+
+    /** Stamp a decoded message, record it in the snapshot, filter it, and
+     *  queue it, unless the filter holds it back, or it's the scratch
+     *  message and there's no room. */
+    private void deliver(ArduinoMessage m, int board, long frameNanos, long sampleNanos) {
+        // For time, we use elapsed time since boot, not wall clock, as the
+        // latter can get changed arbitrarily, and we want accurate
+        // intervals.
+        m.frameNanos = frameNanos;
+        m.sampleNanos = sampleNanos;
+        m.time = SystemClock.elapsedRealtime()
+                - (System.nanoTime() - sampleNanos) / 1000000;
+        m.board = board;
+        // The snapshot has the raw reading, as it's the newest.
+        snapshot.update(m);
+        if (!filters.apply(m)) {
+            // We can use the message for the next one.
+            return;
+        }
+        if (m == scratch) {
+            // The normal lane's messages are all taken, but an urgent
+            // message may have its lane's own. We only know the type now
+            // it's decoded.
+            ArduinoMessage urgent = sensorQueue.tryObtain(m.type);
+            if (urgent == null) {
+                if (CommLog.TRACE) CommLog.trace(CommLog.QUEUE_FULL, m.type, m.which);
+                ++dropped;
+                return;
+            }
+            urgent.copyFrom(m);
+            m = urgent;
+        }
+        long now = System.nanoTime();
+        ingestLatency.record(m.type, m.frameNanos, now);
+        sensorQueue.send(m);
+        if (firstNanos == 0) {
+            firstNanos = now;
+        }
+        // Don't hold a reference to the message.
+        spare = null;
+    }
+}
@@ -0,0 +1,155 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Carries frames from ArduinoIn, on the I/O thread, to a DecodeStage on a
+ * thread of its own. Each slot holds a copy of one frame -- its text, or for
+ * a binary frame, its values -- with what the I/O thread already knows about
+ * it: which board it came from, when it arrived, and when it was taken.
+ *
+ * There is exactly one producer and one consumer. All slots are created up
+ * front, with room for the longest frame, and are filled and read in place,
+ * so nothing is allocated per frame. As in SpscPoolQueue, head is advanced
+ * only by the consumer and tail only by the producer, so neither takes a
+ * lock.
+ *
+ * The producer claim()s the next free slot, fills it in, and publish()es
+ * it. If the ring is full, claim() returns null rather than wait -- the I/O
+ * thread can't. The consumer take()s the oldest published slot, waiting if
+ * there is none, and release()s it when done with its contents.
+ *
+ * @author Pat Tressel
+ */
+public class FrameRing {
+    public static final String TAG = "FrameRing";
+
+    /** How many times to retry before yielding. */
+    private static final int SPINS = 100;
+    /** How many times to yield before parking. */
+    private static final int YIELDS = 10;
+
+    /** One frame, as ArduinoIn hands it on. */
+    public static final class Slot {
+        /** Format the text matched, or null for a binary frame. */
+        public MessageFormat format;
+        /** The text, checksum verified, up to end. */
+        public final byte[] frame = new byte[Constants.MAX_MESSAGE_LEN];
+        public int end;
+        /** A binary frame's type, which and values. */
+        public int type;
+        public int which;
+        public final int[] values = new int[Constants.MAX_MESSAGE_VALUES];
+        public int count;
+        /** The board's micros() from a binary frame, or -1. */
+        public long boardMicros;
+        /** Id of the board the frame came from. */
+        public int board;
+        /** When the frame started to arrive, and when the reading was
+         *  taken, by System.nanoTime(). */
+        public long frameNanos;
+        public long sampleNanos;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    /** Next slot to take. Written only by the consumer. */
+    private final AtomicLong head = new AtomicLong(0);
+    /** Next slot to publish. Written only by the producer. */
+    private final AtomicLong tail = new AtomicLong(0);
+    /** Producer's copy of head. */
+    private long headCache = 0;
+    /** Consumer's copy of tail. */
+    private long tailCache = 0;
+    /** Consumer thread, if it's parked waiting for a frame. */
+    private volatile Thread consumer = null;
+
+    /** A ring of at least capacity slots. It's rounded up to a power of
+     *  two. */
+    public FrameRing(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        slots = new Slot[size];
+        for (int i = 0; i < size; ++i) {
+            slots[i] = new Slot();
+        }
+        mask = size - 1;
+    }
+
+    /** Producer side: the next free slot, or null if the ring is full.
+     *  Calling this again before publish() returns the same slot. */
+    public Slot claim() {
+        long t = tail.get();
+        if (t - headCache == slots.length) {
+            headCache = head.get();
+            if (t - headCache == slots.length) {
+                return null;
+            }
+        }
+        return slots[(int)t & mask];
+    }
+
+    /** Producer side: hand the claimed slot to the consumer. */
+    public void publish() {
+        // A full volatile write, so it's ordered before we look for a
+        // parked consumer -- see SpscPoolQueue.Ring.offer.
+        tail.set(tail.get() + 1);
+        Thread c = consumer;
+        if (c != null) {
+            LockSupport.unpark(c);
+        }
+    }
+
+    /** Consumer side: the oldest published slot, or null if there is none. */
+    public Slot poll() {
+        long h = head.get();
+        if (h == tailCache) {
+            tailCache = tail.get();
+            if (h == tailCache) {
+                return null;
+            }
+        }
+        return slots[(int)h & mask];
+    }
+
+    /**
+     * Consumer side: the oldest published slot, waiting for one if need be.
+     * Returns null only if the thread is interrupted while waiting. The
+     * same slot is returned until it's released.
+     */
+    public Slot take() {
+        Slot s = poll();
+        for (int spin = 0; s == null && spin < SPINS; ++spin) {
+            s = poll();
+        }
+        for (int spin = 0; s == null && spin < YIELDS; ++spin) {
+            Thread.yield();
+            s = poll();
+        }
+        if (s != null) {
+            return s;
+        }
+        consumer = Thread.currentThread();
+        try {
+            // Check again after announcing ourselves, in case the producer
+            // published in between.
+            while ((s = poll()) == null) {
+                if (Thread.interrupted()) {
+                    return null;
+                }
+                LockSupport.park(this);
+            }
+        } finally {
+            consumer = null;
+        }
+        return s;
+    }
+
+    /** Consumer side: give the taken slot back to the producer. */
+    public void release() {
+        head.lazySet(head.get() + 1);
+    }
+}
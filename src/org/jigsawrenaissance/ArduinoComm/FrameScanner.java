@@ -0,0 +1,482 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits the raw byte stream from the Arduino into messages. Bytes are read
+ * a whole chunk at a time into a reusable buffer, and the chunk is scanned in
+ * place by a small state machine, so there is no per-byte method call and no
+ * allocation once the scanner is constructed.
+ *
+ * A frame starts at '$' and ends at CRLF. Bytes outside of a frame (e.g.
+ * noise before the first '$') are dropped. Inside a frame, the escape
+ * &I<hi><lo> (or &i) carries a raw 16-bit value, high byte first -- the
+ * scanner replaces it with the value in decimal digits, so the frame handed
+ * on is plain text, and a raw byte that happens to equal ',' or '*' can't be
+ * mistaken for a separator. The scanner keeps its state between chunks, so a
+ * frame (or an escape) may be split anywhere across reads.
+ *
+ * While scanning, we also accumulate the NMEA checksum, which is the XOR of
+ * the raw bytes between the '$' and the '*', exclusive.
+ *
+ * A damaged frame costs only itself. A frame that runs past MAX_MESSAGE_LEN
+ * (e.g. its LF was lost) is dropped on the spot, and we hunt for the next
+ * '$'. A '$' can't occur inside a text frame -- raw bytes only appear inside
+ * &I escapes -- so one in the body means the frame we were in lost its end:
+ * it's dropped, and a new frame starts at the '$', so the good frame that
+ * follows a bad one is kept. Either way, dropping is just resetting the
+ * length. overruns and resyncs count these.
+ *
+ * The board may instead send binary frames, if ArduinoOut has asked it to
+ * (see Constants.COMMAND_FRAMING). A binary frame is:
+ *   <sync> <type> <which> <count> <value>... [<micros>] <crc>
+ * where sync is BINARY_SYNC, count holds the number of values in its low
+ * bits, BINARY_WIDE if they are 32 bits rather than 16, and BINARY_STAMPED
+ * if the board's micros() follows them as 32 bits, each value is
+ * little-endian, and crc is the CRC-8 of everything after the sync byte.
+ * 16-bit values are unsigned, as for &I; 32-bit values are signed. The sync
+ * byte can't start a text frame, so we tell the two apart between frames,
+ * and the board may mix them -- e.g. pass GPS sentences through as text and
+ * send its own sensors in binary. Binary values need no decoding, so they
+ * go straight to the listener.
+ *
+ * @author Pat Tressel
+ */
+public class FrameScanner {
+    public static final String TAG = "FrameScanner";
+
+    /** Receives each complete frame. */
+    public interface FrameListener {
+        /**
+         * Called once per frame, on the thread doing the scanning. The frame
+         * holds the text after the '$' up to, but not including, the CRLF,
+         * with any &I escapes already expanded. The array is reused for the
+         * next frame, so the listener must not hold on to it.
+         *
+         * @param frame the frame text
+         * @param length number of valid bytes in frame
+         * @param checksum XOR of the raw bytes between '$' and '*'
+         */
+        void onFrame(byte[] frame, int length, int checksum);
+        
+        /**
+         * Called once per binary frame whose CRC is good, on the thread
+         * doing the scanning. The values array is reused for the next frame.
+         *
+         * @param type sensor type
+         * @param which which sensor of that type
+         * @param values the values, in order
+         * @param count number of valid entries in values
+         */
+        void onValues(int type, int which, int[] values, int count);
+    }
+
+    // Scanner states.
+    /** Between frames, looking for '$'. */
+    private static final int HUNT = 0;
+    /** Inside a frame. */
+    private static final int BODY = 1;
+    /** Saw a CR inside a frame -- an LF next ends the frame. */
+    private static final int CR_SEEN = 2;
+    /** Saw '&' -- an I next starts an escaped value. */
+    private static final int AMP_SEEN = 3;
+    /** Expecting the high byte of an escaped value. */
+    private static final int ESC_HI = 4;
+    /** Expecting the low byte of an escaped value. */
+    private static final int ESC_LO = 5;
+    /** Saw the binary sync byte -- expecting the type. */
+    private static final int BIN_TYPE = 6;
+    /** Expecting the which byte of a binary frame. */
+    private static final int BIN_WHICH = 7;
+    /** Expecting the count byte of a binary frame. */
+    private static final int BIN_COUNT = 8;
+    /** Inside the values of a binary frame. */
+    private static final int BIN_VALUE = 9;
+    /** Expecting the CRC of a binary frame. */
+    private static final int BIN_CRC = 10;
+    /** Inside the micros() stamp of a binary frame. */
+    private static final int BIN_STAMP = 11;
+    
+    /** CRC-8, polynomial x^8 + x^2 + x + 1, one entry per byte value. */
+    private static final byte[] CRC_TABLE = new byte[256];
+    static {
+        for (int i = 0; i < 256; ++i) {
+            int crc = i;
+            for (int bit = 0; bit < 8; ++bit) {
+                crc = ((crc & 0x80) != 0) ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            CRC_TABLE[i] = (byte)crc;
+        }
+    }
+
+    /** Chunk buffer the input is read into. */
+    private final ByteBuffer chunk;
+    /** The frame being assembled. */
+    private final byte[] frame = new byte[Constants.MAX_MESSAGE_LEN];
+    /** Number of bytes in frame. */
+    private int length = 0;
+    /** Current scanner state. */
+    private int state = HUNT;
+    /** High byte of an escaped value, held until the low byte arrives. */
+    private int escHi = 0;
+    /** Running checksum of the current frame. */
+    private int checksum = 0;
+    /** Set once we've passed the '*', after which the checksum is fixed. */
+    private boolean starSeen = false;
+    /** When the chunk being scanned arrived. */
+    private long chunkNanos = 0;
+    /** When the current frame's '$' arrived. */
+    private long frameNanos = 0;
+    /** Time for one byte to arrive, so we can tell when a byte in the middle
+     *  of a chunk arrived. */
+    private long byteNanos = Constants.LINK_BYTE_NANOS;
+    
+    // The binary frame being assembled.
+    private int binType = 0;
+    private int binWhich = 0;
+    /** Number of values in the frame. */
+    private int binCount = 0;
+    /** Bytes per value, 2 or 4. */
+    private int binWidth = 2;
+    /** Number of values completed. */
+    private int binIndex = 0;
+    /** Bytes of the current value seen so far. */
+    private int binByte = 0;
+    /** The current value, so far. */
+    private int binValue = 0;
+    /** Whether the frame has a micros() stamp. */
+    private boolean binStamped = false;
+    /** The board's micros() from the frame, or -1 if none. */
+    private long boardMicros = -1;
+    /** Running CRC of the frame. */
+    private int crc = 0;
+    private final int[] values = new int[Constants.MAX_MESSAGE_VALUES];
+    
+    /** Count of binary frames dropped because their CRC was wrong, or their
+     *  count byte made no sense. */
+    public int crcErrors = 0;
+    /** Count of text frames dropped because they were too long. */
+    public int overruns = 0;
+    /** Count of text frames dropped because a '$' came before their end. */
+    public int resyncs = 0;
+
+    private final FrameListener listener;
+
+    public FrameScanner(FrameListener listener) {
+        this.listener = listener;
+        chunk = ByteBuffer.allocate(Constants.READ_CHUNK_LEN);
+    }
+
+    /**
+     * Read one chunk from the stream, blocking until at least one byte is
+     * available, and scan it. Any frames completed by the chunk are passed
+     * to the listener before this returns.
+     *
+     * @return number of bytes read, or -1 at end of stream
+     */
+    public int readFrom(InputStream input) throws IOException {
+        int n = input.read(chunk.array(), chunk.arrayOffset(), chunk.capacity());
+        if (n > 0) {
+            scan(chunk.array(), chunk.arrayOffset(), n);
+        }
+        return n;
+    }
+
+    /**
+     * Read one chunk from the channel and scan it. If the channel is in
+     * non-blocking mode, this may read nothing.
+     *
+     * @return number of bytes read, or -1 at end of stream
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        chunk.clear();
+        int n = channel.read(chunk);
+        if (n > 0) {
+            scan(chunk.array(), chunk.arrayOffset(), n);
+        }
+        return n;
+    }
+
+    /** When the current frame started to arrive, by System.nanoTime(). The
+     *  clock is read once per chunk, when it's read, and a frame that starts
+     *  part way into the chunk is taken to have arrived a byte time per
+     *  byte before that. Valid during onFrame and onValues. */
+    public long getFrameNanos() {
+        return frameNanos;
+    }
+    
+    /** The board's micros() from a binary frame, as an unsigned 32-bit
+     *  value, or -1 if the frame had none. Valid during onValues. */
+    public long getBoardMicros() {
+        return boardMicros;
+    }
+    
+    /** Set the time, in ns, for one byte to cross the link. 0 if it's fast
+     *  enough that a chunk arrives all at once. */
+    public void setByteNanos(long byteNanos) {
+        this.byteNanos = byteNanos;
+    }
+
+    /** The CRC-8 of count bytes of buf, as used by binary frames. */
+    public static int crc8(byte[] buf, int offset, int count) {
+        int crc = 0;
+        for (int i = offset; i < offset + count; ++i) {
+            crc = CRC_TABLE[(crc ^ buf[i]) & 0xff] & 0xff;
+        }
+        return crc;
+    }
+    
+    /** Forget any partly assembled frame, and look for the next frame. */
+    public void reset() {
+        state = HUNT;
+        length = 0;
+    }
+
+    /**
+     * Scan bytes, assembling frames. This is the inner loop for all input,
+     * so everything is inlined here.
+     */
+    public void scan(byte[] buf, int offset, int count) {
+        // Work on locals, and store them back at the end of the chunk.
+        final byte[] frame = this.frame;
+        final int limit = offset + count;
+        int state = this.state;
+        int length = this.length;
+        int checksum = this.checksum;
+        boolean starSeen = this.starSeen;
+        int i = offset;
+        // One clock reading per chunk, not per frame.
+        chunkNanos = System.nanoTime();
+
+        while (i < limit) {
+            int b = buf[i] & 0xff;
+
+            switch (state) {
+            case HUNT:
+                if (b == Constants.DOLLAR) {
+                    // The chunk was read when its last byte arrived.
+                    frameNanos = chunkNanos - (limit - i - 1) * byteNanos;
+                    length = 0;
+                    checksum = 0;
+                    starSeen = false;
+                    state = BODY;
+                } else if (b == Constants.BINARY_SYNC) {
+                    frameNanos = chunkNanos - (limit - i - 1) * byteNanos;
+                    crc = 0;
+                    state = BIN_TYPE;
+                }
+                ++i;
+                continue;
+
+            case BIN_TYPE:
+                crc = CRC_TABLE[crc ^ b] & 0xff;
+                binType = b;
+                state = BIN_WHICH;
+                ++i;
+                continue;
+
+            case BIN_WHICH:
+                crc = CRC_TABLE[crc ^ b] & 0xff;
+                binWhich = b;
+                state = BIN_COUNT;
+                ++i;
+                continue;
+
+            case BIN_COUNT:
+                crc = CRC_TABLE[crc ^ b] & 0xff;
+                binCount = b & Constants.BINARY_COUNT_MASK;
+                binWidth = ((b & Constants.BINARY_WIDE) != 0) ? 4 : 2;
+                binStamped = (b & Constants.BINARY_STAMPED) != 0;
+                boardMicros = -1;
+                binIndex = 0;
+                binByte = 0;
+                binValue = 0;
+                if (binCount > values.length
+                        || (b & ~(Constants.BINARY_COUNT_MASK | Constants.BINARY_WIDE
+                                | Constants.BINARY_STAMPED)) != 0) {
+                    // Not one of ours -- probably a stray sync byte.
+                    if (CommLog.TRACE) CommLog.trace(CommLog.BAD_CRC, binType, binWhich);
+                    ++crcErrors;
+                    state = HUNT;
+                } else {
+                    state = (binCount != 0) ? BIN_VALUE : binStamped ? BIN_STAMP : BIN_CRC;
+                }
+                ++i;
+                continue;
+
+            case BIN_VALUE:
+                crc = CRC_TABLE[crc ^ b] & 0xff;
+                binValue |= b << (8 * binByte);
+                if (++binByte == binWidth) {
+                    // 32-bit values are already signed.
+                    values[binIndex++] = binValue;
+                    binByte = 0;
+                    binValue = 0;
+                    if (binIndex == binCount) {
+                        state = binStamped ? BIN_STAMP : BIN_CRC;
+                    }
+                }
+                ++i;
+                continue;
+
+            case BIN_STAMP:
+                crc = CRC_TABLE[crc ^ b] & 0xff;
+                binValue |= b << (8 * binByte);
+                if (++binByte == 4) {
+                    boardMicros = binValue & 0xffffffffL;
+                    binByte = 0;
+                    binValue = 0;
+                    state = BIN_CRC;
+                }
+                ++i;
+                continue;
+
+            case BIN_CRC:
+                if (b == crc) {
+                    listener.onValues(binType, binWhich, values, binCount);
+                } else {
+                    if (CommLog.TRACE) CommLog.trace(CommLog.BAD_CRC, binType, binWhich);
+                    ++crcErrors;
+                }
+                state = HUNT;
+                ++i;
+                continue;
+
+            case CR_SEEN:
+                if (b == Constants.LF) {
+                    listener.onFrame(frame, length, checksum);
+                    state = HUNT;
+                    ++i;
+                    continue;
+                }
+                // CR in the middle of a message -- probably a mistake. Keep
+                // it, and look at this byte again as part of the body.
+                if (!starSeen) {
+                    checksum ^= Constants.CR;
+                }
+                if (length == frame.length) {
+                    ++overruns;
+                    state = HUNT;
+                    continue;
+                }
+                frame[length++] = Constants.CR;
+                state = BODY;
+                continue;
+
+            case AMP_SEEN:
+                if ((b == Constants.UPPER_I) || (b == Constants.LOWER_I)) {
+                    if (!starSeen) {
+                        checksum ^= b;
+                    }
+                    state = ESC_HI;
+                    ++i;
+                    continue;
+                }
+                // It's just an &... Keep it and look at this byte again.
+                if (length == frame.length) {
+                    ++overruns;
+                    state = HUNT;
+                    continue;
+                }
+                frame[length++] = Constants.AMP;
+                state = BODY;
+                continue;
+
+            case ESC_HI:
+                if (!starSeen) {
+                    checksum ^= b;
+                }
+                escHi = b;
+                state = ESC_LO;
+                ++i;
+                continue;
+
+            case ESC_LO: {
+                if (!starSeen) {
+                    checksum ^= b;
+                }
+                // Same as ArduinoComm.composeInt, then written out as
+                // decimal digits, most significant first.
+                int val = (escHi << 8) | b;
+                int digits = 1;
+                for (int v = val; v >= 10; v /= 10) {
+                    ++digits;
+                }
+                if (length + digits > frame.length) {
+                    ++overruns;
+                    state = HUNT;
+                    ++i;
+                    continue;
+                }
+                for (int k = length + digits - 1; k >= length; --k) {
+                    frame[k] = (byte)('0' + (val % 10));
+                    val /= 10;
+                }
+                length += digits;
+                state = BODY;
+                ++i;
+                continue;
+            }
+
+            default: // BODY
+                break;
+            }
+
+            // In the body of a frame. This is the common case, so run
+            // through ordinary bytes without going back around the switch.
+            while (i < limit) {
+                b = buf[i] & 0xff;
+                if (b == Constants.CR || b == Constants.AMP || b == Constants.DOLLAR) {
+                    break;
+                }
+                if (b == Constants.STAR) {
+                    starSeen = true;
+                } else if (!starSeen) {
+                    checksum ^= b;
+                }
+                if (length == frame.length) {
+                    // Too long to be one of ours -- drop it.
+                    break;
+                }
+                frame[length++] = (byte)b;
+                ++i;
+            }
+            if (i == limit) {
+                break;
+            }
+            if (b == Constants.DOLLAR) {
+                // The frame we were in lost its end. Drop it, and start
+                // again here.
+                if (CommLog.TRACE) CommLog.trace(CommLog.RESYNC, length, 0);
+                ++resyncs;
+                frameNanos = chunkNanos - (limit - i - 1) * byteNanos;
+                length = 0;
+                checksum = 0;
+                starSeen = false;
+            } else if (b != Constants.CR && b != Constants.AMP) {
+                // Too long to be one of ours. Skip the rest of it.
+                if (CommLog.TRACE) CommLog.trace(CommLog.OVERRUN, length, 0);
+                ++overruns;
+                state = HUNT;
+            } else if (b == Constants.CR) {
+                // The CR only counts toward the checksum if it turns out not
+                // to be the end of the frame.
+                state = CR_SEEN;
+            } else {
+                if (!starSeen) {
+                    checksum ^= b;
+                }
+                state = AMP_SEEN;
+            }
+            ++i;
+        }
+
+        this.state = state;
+        this.length = length;
+        this.checksum = checksum;
+        this.starSeen = starSeen;
+    }
+}
@@ -0,0 +1,123 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size histogram of latencies in nanoseconds, after the fashion of
+ * HdrHistogram. Values below 32 have a bucket each; above that, each power of
+ * two is split into 32 buckets, so a value is reported to within about 3%.
+ * Values up to 2^40 ns (about 18 minutes) are covered, and anything larger
+ * counts as the largest.
+ *
+ * Recording is one atomic increment, from any number of threads, with no
+ * locks and no allocation. Percentiles are computed on demand from the live
+ * counts, so a reading taken while values are being recorded is approximate
+ * to within the values recorded meanwhile.
+ *
+ * @author Pat Tressel
+ */
+public class LatencyHistogram {
+    public static final String TAG = "LatencyHistogram";
+
+    /** Bits of each value kept below the leading one. */
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    /** Largest power of two covered. */
+    private static final int MAX_EXPONENT = 40;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int NUM_BUCKETS =
+        SUB_COUNT + (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong total = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    /** Record one latency. Negative values (from clock misuse) count as 0. */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        } else if (nanos > MAX_VALUE) {
+            nanos = MAX_VALUE;
+        }
+        counts.incrementAndGet(bucketOf(nanos));
+        total.incrementAndGet();
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    /** Number of values recorded. */
+    public long count() {
+        return total.get();
+    }
+
+    /** Largest value recorded. */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * The value below which the given percentage of recorded values fall,
+     * e.g. valueAtPercentile(99.0). Reported as the top of the bucket, so
+     * it errs high. Returns 0 if nothing has been recorded.
+     */
+    public long valueAtPercentile(double percentile) {
+        long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(n * percentile / 100.0);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /** Clear all counts. Not atomic with respect to concurrent records. */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        max.set(0);
+    }
+
+    /** Add "count p50 p90 p99 p99.9 max" in microseconds to text. */
+    public void describe(StringBuilder text) {
+        text.append("n=").append(count())
+            .append(" p50=").append(valueAtPercentile(50.0) / 1000)
+            .append(" p90=").append(valueAtPercentile(90.0) / 1000)
+            .append(" p99=").append(valueAtPercentile(99.0) / 1000)
+            .append(" p99.9=").append(valueAtPercentile(99.9) / 1000)
+            .append(" max=").append(max() / 1000)
+            .append(" us");
+    }
+
+    private static int bucketOf(long v) {
+        if (v < SUB_COUNT) {
+            return (int)v;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        int shift = exponent - SUB_BITS;
+        int sub = (int)(v >>> shift) - SUB_COUNT;
+        return SUB_COUNT + shift * SUB_COUNT + sub;
+    }
+
+    private static long highestIn(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_COUNT) / SUB_COUNT;
+        long mantissa = SUB_COUNT + (bucket - SUB_COUNT) % SUB_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
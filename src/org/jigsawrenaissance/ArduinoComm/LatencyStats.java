@@ -0,0 +1,79 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A set of LatencyHistograms for one stage of the pipeline, one per sensor
+ * type or command target. A key's histogram is created the first time a
+ * value is recorded for it, so memory goes only to the keys actually seen;
+ * after that, recording allocates nothing.
+ *
+ * @author Pat Tressel
+ */
+public class LatencyStats {
+    public static final String TAG = "LatencyStats";
+
+    /** Keys are a sensor type or a command target, which fit in a byte. */
+    public static final int MAX_KEYS = 256;
+
+    /** What this measures, for describe(). */
+    private final String name;
+    private final AtomicReferenceArray<LatencyHistogram> histograms =
+        new AtomicReferenceArray<LatencyHistogram>(MAX_KEYS);
+
+    public LatencyStats(String name) {
+        this.name = name;
+    }
+
+    /** Record the time from start to end, both from System.nanoTime(),
+     *  against key. Ignored if start is 0, i.e. was never stamped. */
+    public void record(int key, long startNanos, long endNanos) {
+        if (startNanos == 0) {
+            return;
+        }
+        get(key & (MAX_KEYS - 1)).record(endNanos - startNanos);
+    }
+
+    /** The histogram for key, creating it if need be. */
+    public LatencyHistogram get(int key) {
+        LatencyHistogram h = histograms.get(key);
+        if (h == null) {
+            histograms.compareAndSet(key, null, new LatencyHistogram());
+            h = histograms.get(key);
+        }
+        return h;
+    }
+
+    /** The histogram for key, or null if nothing has been recorded for it. */
+    public LatencyHistogram peek(int key) {
+        return histograms.get(key);
+    }
+
+    /** Clear all histograms. */
+    public void reset() {
+        for (int key = 0; key < MAX_KEYS; ++key) {
+            LatencyHistogram h = histograms.get(key);
+            if (h != null) {
+                h.reset();
+            }
+        }
+    }
+
+    /** Add one line per key seen to text, with its percentiles. */
+    public void describe(StringBuilder text) {
+        describe(text, name);
+    }
+
+    /** As describe(text), but label the lines with label rather than our
+     *  name, e.g. to tell apart two queues' wait times. */
+    public void describe(StringBuilder text, String label) {
+        for (int key = 0; key < MAX_KEYS; ++key) {
+            LatencyHistogram h = histograms.get(key);
+            if (h != null) {
+                text.append(label).append('[').append(key).append("] ");
+                h.describe(text);
+                text.append('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+/**
+ * Decodes the text of one frame, as produced by FrameScanner, into the
+ * fields of an ArduinoMessage, using the table of formats in MessageFormat.
+ * Numbers are converted digit by digit straight into the message's int
+ * fields -- there are no Strings, boxed values, or regexes involved, so
+ * decoding doesn't allocate anything.
+ *
+ * A decoder is used by one thread only.
+ *
+ * @author Pat Tressel
+ */
+public class MessageDecoder {
+    public static final String TAG = "MessageDecoder";
+
+    /** The formats we match against. */
+    private final MessageFormat[] formats;
+
+    // Each decoder is used by one thread, which is the only writer of its
+    // counts; they're volatile so Metrics can read them from another.
+    /** Count of frames whose checksum did not match. */
+    public volatile int checksumErrors = 0;
+    /** Count of frames with an unknown prefix. */
+    public volatile int unknownFrames = 0;
+    /** Count of frames that matched a format but were malformed. */
+    public volatile int parseErrors = 0;
+
+    public MessageDecoder() {
+        this(MessageFormat.FORMATS);
+    }
+
+    public MessageDecoder(MessageFormat[] formats) {
+        this.formats = formats;
+    }
+
+    /**
+     * Verify the checksum, if the frame has one, and find the end of the
+     * data, i.e. the position of the '*', or the length if there's no
+     * checksum.
+     *
+     * @param checksum checksum of the frame's raw bytes, from FrameScanner
+     * @return end of the data, or -1 if the checksum is wrong
+     */
+    public int checkedLength(byte[] frame, int length, int checksum) {
+        // The checksum is one or two hex digits at the very end.
+        int star = -1;
+        for (int i = length - 1; i >= 0 && i >= length - 3; --i) {
+            if (frame[i] == Constants.STAR) {
+                star = i;
+                break;
+            }
+        }
+        if (star < 0) {
+            return length;
+        }
+        int sent = 0;
+        for (int i = star + 1; i < length; ++i) {
+            int h = hexValue(frame[i]);
+            if (h < 0) {
+                ++checksumErrors;
+                return -1;
+            }
+            sent = (sent << 4) | h;
+        }
+        if (star + 1 == length || sent != checksum) {
+            ++checksumErrors;
+            return -1;
+        }
+        return star;
+    }
+
+    /** Find the format whose prefix starts the frame, or null if none. */
+    public MessageFormat match(byte[] frame, int end) {
+        for (int f = 0; f < formats.length; ++f) {
+            byte[] prefix = formats[f].prefix;
+            if (prefix.length > end) {
+                continue;
+            }
+            int i = 0;
+            while (i < prefix.length && frame[i] == prefix[i]) {
+                ++i;
+            }
+            if (i == prefix.length) {
+                return formats[f];
+            }
+        }
+        ++unknownFrames;
+        return null;
+    }
+
+    /**
+     * Decode the frame into m, which must have come from match() on the same
+     * frame. A board time stamp (@<micros>) after the fields goes in
+     * m.boardMicros, which is -1 if there isn't one. On failure, the
+     * contents of m are undefined.
+     *
+     * @param end end of the data, from checkedLength()
+     * @return true if the frame was well-formed
+     */
+    public boolean decode(MessageFormat format, byte[] frame, int end,
+            ArduinoMessage m) {
+        int pos = format.prefix.length;
+
+        if (format.type == MessageFormat.TYPE_FROM_PREFIX) {
+            // xnn: type as a hex digit, which as two decimal digits.
+            if (pos + 3 > end) {
+                ++parseErrors;
+                return false;
+            }
+            int x = hexValue(frame[pos]);
+            int n1 = frame[pos + 1] - '0';
+            int n2 = frame[pos + 2] - '0';
+            if (x < 0 || n1 < 0 || n1 > 9 || n2 < 0 || n2 > 9) {
+                ++parseErrors;
+                return false;
+            }
+            m.type = x;
+            m.which = n1 * 10 + n2;
+            pos += 3;
+        } else {
+            m.type = format.type;
+            m.which = format.which;
+        }
+
+        m.boardMicros = -1;
+        int field = 0;
+        while (pos < end) {
+            if (frame[pos] == Constants.AT) {
+                // The board's micros(), which must be the last thing.
+                long micros = 0;
+                ++pos;
+                int start = pos;
+                while (pos < end) {
+                    int d = frame[pos] - '0';
+                    if (d < 0 || d > 9) {
+                        break;
+                    }
+                    micros = micros * 10 + d;
+                    ++pos;
+                }
+                if (pos != end || pos == start || pos - start > 10) {
+                    ++parseErrors;
+                    return false;
+                }
+                m.boardMicros = micros & 0xffffffffL;
+                break;
+            }
+            // Each field is introduced by a comma.
+            if (frame[pos] != Constants.COMMA) {
+                ++parseErrors;
+                return false;
+            }
+            ++pos;
+            int kind = format.kindOf(field);
+            if (kind == 0 || field == Constants.MAX_MESSAGE_VALUES) {
+                ++parseErrors;
+                return false;
+            }
+
+            // Skip leading blanks.
+            while (pos < end && frame[pos] == ' ') {
+                ++pos;
+            }
+
+            int val = 0;
+            if (kind == MessageFormat.CHAR) {
+                if (pos < end && frame[pos] != Constants.COMMA) {
+                    val = frame[pos] & 0xff;
+                    ++pos;
+                }
+                if ((val == 'S' || val == 'W') && field > 0
+                        && format.kindOf(field - 1) == MessageFormat.LATLON) {
+                    m.setValue(field, -m.getValue(field));
+                }
+            } else if (kind == MessageFormat.LATLON || kind == MessageFormat.TIME) {
+                // The whole part, then up to seven digits of fraction, which
+                // we keep in units of 1e-7.
+                int whole = 0;
+                int digits = 0;
+                while (pos < end) {
+                    int d = frame[pos] - '0';
+                    if (d < 0 || d > 9) {
+                        break;
+                    }
+                    whole = whole * 10 + d;
+                    ++digits;
+                    ++pos;
+                }
+                int fraction = 0;
+                int scale = 7;
+                if (pos < end && frame[pos] == '.') {
+                    ++pos;
+                    while (pos < end) {
+                        int d = frame[pos] - '0';
+                        if (d < 0 || d > 9) {
+                            break;
+                        }
+                        if (scale > 0) {
+                            fraction = fraction * 10 + d;
+                            --scale;
+                        }
+                        ++pos;
+                    }
+                }
+                while (scale > 0) {
+                    fraction *= 10;
+                    --scale;
+                }
+                if (digits > 6) {
+                    // No more than dddmm or hhmmss.
+                    ++parseErrors;
+                    return false;
+                }
+                if (kind == MessageFormat.LATLON) {
+                    // Degrees, plus minutes over 60.
+                    long minutes = (whole % 100) * 10000000L + fraction;
+                    val = (int)((whole / 100) * 10000000L + (minutes + 30) / 60);
+                } else {
+                    int seconds = (whole / 10000) * 3600 + (whole / 100 % 100) * 60 + whole % 100;
+                    val = seconds * 1000 + fraction / 10000;
+                }
+            } else {
+                boolean negative = false;
+                if (pos < end && (frame[pos] == '-' || frame[pos] == '+')) {
+                    negative = (frame[pos] == '-');
+                    ++pos;
+                }
+                while (pos < end) {
+                    int d = frame[pos] - '0';
+                    if (d < 0 || d > 9) {
+                        break;
+                    }
+                    val = val * 10 + d;
+                    ++pos;
+                }
+                if (kind == MessageFormat.DECIMAL) {
+                    int scale = format.scaleOf(field);
+                    if (pos < end && frame[pos] == '.') {
+                        ++pos;
+                        while (pos < end) {
+                            int d = frame[pos] - '0';
+                            if (d < 0 || d > 9) {
+                                break;
+                            }
+                            if (scale > 0) {
+                                val = val * 10 + d;
+                                --scale;
+                            }
+                            ++pos;
+                        }
+                    }
+                    while (scale > 0) {
+                        val *= 10;
+                        --scale;
+                    }
+                }
+                if (negative) {
+                    val = -val;
+                }
+            }
+
+            // Skip trailing blanks. Anything else left over is an error.
+            while (pos < end && frame[pos] == ' ') {
+                ++pos;
+            }
+            if (pos < end && frame[pos] != Constants.COMMA && frame[pos] != Constants.AT) {
+                ++parseErrors;
+                return false;
+            }
+
+            m.setValue(++field, val);
+        }
+        m.nvals = field;
+        return true;
+    }
+
+    /**
+     * Find which sensor a frame is from, without decoding it, as
+     * type * SensorSnapshot.MAX_WHICH + which. If the $PRSO xnn isn't
+     * valid, the result is 0 -- decode() will reject the frame.
+     *
+     * @param end end of the data, from checkedLength()
+     */
+    public static int sensorKey(MessageFormat format, byte[] frame, int end) {
+        if (format.type != MessageFormat.TYPE_FROM_PREFIX) {
+            return format.type * SensorSnapshot.MAX_WHICH + format.which;
+        }
+        int pos = format.prefix.length;
+        if (pos + 3 > end) {
+            return 0;
+        }
+        int x = hexValue(frame[pos]);
+        int n1 = frame[pos + 1] - '0';
+        int n2 = frame[pos + 2] - '0';
+        if (x < 0 || n1 < 0 || n1 > 9 || n2 < 0 || n2 > 9) {
+            return 0;
+        }
+        return x * SensorSnapshot.MAX_WHICH + n1 * 10 + n2;
+    }
+
+    /**
+     * Find the board time stamp (@<micros>) at the end of a frame, without
+     * decoding the rest, for when the time is wanted before the frame is
+     * decoded. decode() still checks it properly.
+     *
+     * @param end end of the data, from checkedLength()
+     * @return the micros, or -1 if there's no stamp
+     */
+    public static long findMicros(byte[] frame, int end) {
+        int pos = end;
+        while (pos > 0 && frame[pos - 1] >= '0' && frame[pos - 1] <= '9') {
+            --pos;
+        }
+        if (pos == 0 || pos == end || end - pos > 10 || frame[pos - 1] != Constants.AT) {
+            return -1;
+        }
+        long micros = 0;
+        for (int i = pos; i < end; ++i) {
+            micros = micros * 10 + (frame[i] - '0');
+        }
+        return micros & 0xffffffffL;
+    }
+
+    /** Value of a hex digit, or -1 if it isn't one. */
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,162 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+/**
+ * Describes one kind of incoming message: the prefix that identifies it, the
+ * message type it produces, and how each comma-separated field is encoded.
+ * The decoder is driven entirely off the table of formats, FORMATS, so
+ * adding a message is a matter of adding an entry here.
+ *
+ * Fields are decoded in order into val1, val2, ... of the ArduinoMessage,
+ * as integers. Decimal fields are scaled by a power of ten, e.g. "280.2"
+ * with a scale of 3 becomes 280200, i.e. millimetres. GPS positions and
+ * times have kinds of their own, which convert them to fixed point units
+ * that are easier to work with than NMEA's. Empty fields (as NMEA sends
+ * for data it doesn't have) decode to zero, but still take up a value
+ * slot, so the slots always line up with the positions in the sentence.
+ *
+ * @author Pat Tressel
+ */
+public class MessageFormat {
+    // Field kinds.
+    /** Signed decimal integer. */
+    public static final byte INT = 1;
+    /** Signed decimal number with a fraction, scaled by 10^scale. Extra
+     *  fraction digits are truncated. */
+    public static final byte DECIMAL = 2;
+    /** A single character, e.g. N/S, stored as its byte value. If it
+     *  follows a LATLON and is S or W, the LATLON is made negative. */
+    public static final byte CHAR = 3;
+    /** NMEA latitude or longitude, ddmm.mmmm or dddmm.mmmm, as 1e-7
+     *  degrees, rounded. */
+    public static final byte LATLON = 4;
+    /** NMEA time of day, hhmmss.sss, as milliseconds since midnight. */
+    public static final byte TIME = 5;
+
+    /** Use as the type of a format whose prefix is followed by the type and
+     *  which sensor, as in $PRSOxnn. */
+    public static final int TYPE_FROM_PREFIX = -1;
+
+    /** Message identifier, following the $. */
+    public final byte[] prefix;
+    /** Type of the messages, or TYPE_FROM_PREFIX. */
+    public final int type;
+    /** Which sensor, if not taken from the prefix. */
+    public final int which;
+    /** Kind of each field. */
+    public final byte[] kinds;
+    /** Number of fraction digits kept for each DECIMAL field. */
+    public final byte[] scales;
+    /** If true, fields beyond the end of kinds repeat the last kind, so a
+     *  message may have any number of values, up to the max. */
+    public final boolean repeatLast;
+
+    public MessageFormat(String prefix, int type, int which,
+            byte[] kinds, byte[] scales, boolean repeatLast) {
+        this.prefix = new byte[prefix.length()];
+        for (int i = 0; i < this.prefix.length; ++i) {
+            this.prefix[i] = (byte)prefix.charAt(i);
+        }
+        this.type = type;
+        this.which = which;
+        this.kinds = kinds;
+        this.scales = scales;
+        this.repeatLast = repeatLast;
+    }
+
+    /** Kind of the field at the given position (0 for the first field), or
+     *  0 if the message should not have that many fields. */
+    public final int kindOf(int field) {
+        if (field < kinds.length) {
+            return kinds[field];
+        }
+        return repeatLast ? kinds[kinds.length - 1] : 0;
+    }
+
+    /** Scale of the field at the given position. */
+    public final int scaleOf(int field) {
+        if (field < scales.length) {
+            return scales[field];
+        }
+        return repeatLast ? scales[scales.length - 1] : 0;
+    }
+
+    /**
+     * Our sensors on the Arduino:
+     *   $PRSOxnn,<arg1>,<arg2>,...,<argN>[*<cksum>]
+     * where x is the sensor type and nn which sensor within that type. All
+     * arguments are integers, or &I escapes, which FrameScanner has already
+     * turned into integers.
+     */
+    public static final MessageFormat PRSO = new MessageFormat(
+            "PRSO", TYPE_FROM_PREFIX, 0,
+            new byte[] {INT},
+            new byte[] {0},
+            true);
+
+    /**
+     * GPS fix data:
+     *   $GPGGA,hhmmss,ddmm.mmmm,N,dddmm.mmmm,W,q,ss,h.h,a.a,M,g.g,M,age,id
+     * Time is in ms since midnight. Lat and lon are in 1e-7 degrees,
+     * negative for S and W -- about a centimetre, finer than any GPS we'll
+     * use. HDOP is in hundredths, altitude and geoid separation in
+     * millimetres, and the age of the DGPS data in tenths of a second.
+     */
+    public static final MessageFormat GPGGA = new MessageFormat(
+            "GPGGA", Constants.SENSOR_GPS, Constants.GPS_FIX,
+            new byte[] {TIME, LATLON, CHAR, LATLON, CHAR, INT, INT,
+                        DECIMAL, DECIMAL, CHAR, DECIMAL, CHAR, DECIMAL, INT},
+            new byte[] {0, 0, 0, 0, 0, 0, 0, 2, 3, 0, 3, 0, 1, 0},
+            false);
+
+    /**
+     * GPS recommended minimum data:
+     *   $GPRMC,hhmmss,A,ddmm.mmmm,N,dddmm.mmmm,W,sss.s,ccc.c,ddmmyy,v.v,E
+     * Time, lat and lon as for GPGGA. Speed is in thousandths of a knot,
+     * course and magnetic variation in hundredths of a degree.
+     */
+    public static final MessageFormat GPRMC = new MessageFormat(
+            "GPRMC", Constants.SENSOR_GPS, Constants.GPS_RECOMMENDED,
+            new byte[] {TIME, CHAR, LATLON, CHAR, LATLON, CHAR,
+                        DECIMAL, DECIMAL, INT, DECIMAL, CHAR},
+            new byte[] {0, 0, 0, 0, 0, 0, 3, 2, 0, 2, 0},
+            false);
+
+    /**
+     * A board's hello, which it sends first thing after connecting:
+     *   $PRID,<board>,<target>,<target>,...[*<cksum>]
+     * giving its board id, from 0 to MAX_BOARDS - 1, and the command targets
+     * it owns. ArduinoIn handles this itself -- it doesn't go to the
+     * controller.
+     */
+    public static final MessageFormat PRID = new MessageFormat(
+            "PRID", Constants.BOARD_HELLO, 0,
+            new byte[] {INT},
+            new byte[] {0},
+            true);
+
+    /**
+     * A command the board got, sent back if it's set to echo:
+     *   $ECHO,<target>,<value>[*<cksum>]
+     * ArduinoIn counts these -- they don't go to the controller.
+     */
+    public static final MessageFormat ECHO = new MessageFormat(
+            "ECHO", Constants.BOARD_ECHO, 0,
+            new byte[] {INT},
+            new byte[] {0},
+            true);
+
+    /**
+     * A board acknowledging sequenced commands:
+     *   $ACK,<seq>[*<cksum>]
+     * meaning it has acted on everything up to the COMMAND_SEQUENCE marker
+     * with that value. ArduinoIn passes these to ArduinoOut.
+     */
+    public static final MessageFormat ACK = new MessageFormat(
+            "ACK", Constants.BOARD_ACK, 0,
+            new byte[] {INT},
+            new byte[] {0},
+            true);
+
+    /** The messages we know how to decode. */
+    public static final MessageFormat[] FORMATS = {PRSO, GPGGA, GPRMC, PRID, ECHO, ACK};
+}
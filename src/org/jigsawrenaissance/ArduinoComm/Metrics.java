@@ -0,0 +1,100 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+/**
+ * A registry of the comm stack's health measures, so they can be watched
+ * while the rover runs -- see MetricsReporter. Each part of the stack
+ * registers what it has, by name, with registerMetrics(): counters
+ * (StripedCounters, which only go up), gauges (values read when a snapshot
+ * is taken, e.g. a queue's depth), and latency stats.
+ *
+ * Registering is done once, at start-up. After that the parts just update
+ * their counters as usual -- nothing here is on their paths. A snapshot
+ * gives each counter's value, and its rate per second since the previous
+ * snapshot; each gauge's value; and each latency's percentiles.
+ *
+ * @author Pat Tressel
+ */
+public class Metrics {
+    public static final String TAG = "Metrics";
+
+    /** Most counters and gauges, together, we can hold. */
+    public static final int MAX_METRICS = 128;
+    /** Most latency stats we can hold. */
+    public static final int MAX_LATENCIES = 16;
+
+    /** A value read when a snapshot is taken. */
+    public interface Gauge {
+        long read();
+    }
+
+    private final String[] names = new String[MAX_METRICS];
+    /** Each metric is a counter or a gauge -- the other is null. */
+    private final StripedCounter[] counters = new StripedCounter[MAX_METRICS];
+    private final Gauge[] gauges = new Gauge[MAX_METRICS];
+    private int size = 0;
+
+    private final String[] latencyLabels = new String[MAX_LATENCIES];
+    private final LatencyStats[] latencies = new LatencyStats[MAX_LATENCIES];
+    private int numLatencies = 0;
+
+    /** Counter values at the previous snapshot, for the rates. */
+    private final long[] last = new long[MAX_METRICS];
+    private final long startNanos = System.nanoTime();
+    private long lastNanos = startNanos;
+
+    public synchronized void add(String name, StripedCounter counter) {
+        check(MAX_METRICS - size);
+        names[size] = name;
+        counters[size] = counter;
+        ++size;
+    }
+
+    public synchronized void add(String name, Gauge gauge) {
+        check(MAX_METRICS - size);
+        names[size] = name;
+        gauges[size] = gauge;
+        ++size;
+    }
+
+    /** Add stats whose lines will be labelled with label. */
+    public synchronized void add(String label, LatencyStats stats) {
+        check(MAX_LATENCIES - numLatencies);
+        latencyLabels[numLatencies] = label;
+        latencies[numLatencies] = stats;
+        ++numLatencies;
+    }
+
+    private static void check(int room) {
+        if (room == 0) {
+            throw new IllegalStateException("Too many metrics");
+        }
+    }
+
+    /**
+     * Add a snapshot to text: a header line with the time since we were
+     * made, then a line per counter, gauge and latency key.
+     */
+    public synchronized void snapshot(StringBuilder text) {
+        long now = System.nanoTime();
+        double seconds = (now - lastNanos) / 1e9;
+        text.append("# uptime_ms ").append((now - startNanos) / 1000000).append('\n');
+        for (int i = 0; i < size; ++i) {
+            text.append(names[i]).append(' ');
+            if (counters[i] != null) {
+                long value = counters[i].get();
+                text.append(value);
+                if (seconds > 0) {
+                    text.append(' ').append(Math.round((value - last[i]) / seconds)).append("/s");
+                }
+                last[i] = value;
+            } else {
+                text.append(gauges[i].read());
+            }
+            text.append('\n');
+        }
+        for (int i = 0; i < numLatencies; ++i) {
+            latencies[i].describe(text, latencyLabels[i]);
+        }
+        lastNanos = now;
+    }
+}
@@ -0,0 +1,138 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import android.util.Log;
+
+/**
+ * Makes Metrics snapshots available outside the app, in one of two ways:
+ *
+ * - On a loopback port: each connection gets one snapshot, as text, and is
+ *   closed. So, with adb forward tcp:6001 tcp:6001, running
+ *   nc localhost 6001 now and then gives a series to chart.
+ * - In a file: a snapshot is appended every so often, to be pulled off the
+ *   phone afterwards.
+ *
+ * Run this on a thread of its own, at low priority -- it does its work
+ * rarely, and may allocate, but nothing the comm stack does waits on it.
+ * stop() ends it.
+ *
+ * @author Pat Tressel
+ */
+public class MetricsReporter implements Runnable {
+    public static final String TAG = "MetricsReporter";
+
+    private final Metrics metrics;
+    private final int port;
+    private final File file;
+    private final int periodMs;
+    private volatile boolean running = true;
+    private ServerSocket server;
+
+    /** Serve snapshots on port, on the loopback interface only. */
+    public MetricsReporter(Metrics metrics, int port) {
+        this.metrics = metrics;
+        this.port = port;
+        this.file = null;
+        this.periodMs = 0;
+    }
+
+    /** Append a snapshot to file every periodMs milliseconds. */
+    public MetricsReporter(Metrics metrics, File file, int periodMs) {
+        this.metrics = metrics;
+        this.port = 0;
+        this.file = file;
+        this.periodMs = periodMs;
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException e) { }
+    }
+
+    public void run() {
+        if (file != null) {
+            dump();
+        } else {
+            serve();
+        }
+    }
+
+    private void serve() {
+        try {
+            server = new ServerSocket(port, 4, InetAddress.getByName("127.0.0.1"));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open metrics port " + port, e);
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        while (running) {
+            Socket client = null;
+            try {
+                client = server.accept();
+                text.setLength(0);
+                metrics.snapshot(text);
+                write(client.getOutputStream(), text);
+            } catch (IOException e) {
+                if (running) {
+                    Log.d(TAG, "Metrics connection failed: " + e);
+                }
+            } finally {
+                if (client != null) {
+                    try {
+                        client.close();
+                    } catch (IOException e) { }
+                }
+            }
+        }
+    }
+
+    private void dump() {
+        OutputStream out;
+        try {
+            out = new FileOutputStream(file, true);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open " + file, e);
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        try {
+            while (running) {
+                try {
+                    Thread.sleep(periodMs);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                text.setLength(0);
+                metrics.snapshot(text);
+                write(out, text);
+                out.flush();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + file, e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) { }
+        }
+    }
+
+    /** Write text as 8-bit ASCII, which is all a snapshot has. */
+    private static void write(OutputStream out, StringBuilder text) throws IOException {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte)text.charAt(i);
+        }
+        out.write(bytes);
+    }
+}
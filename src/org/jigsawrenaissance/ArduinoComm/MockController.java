@@ -16,6 +16,8 @@ public class MockController implements Runnable {
     /** Our end of the ArduinoOut command queue. */
     private PoolQueue commandQueue;
     
+    private volatile boolean running = true;
+    
     // A set of fake commands to send.
     private int which_command = 0;
     private byte[][] mock_commands = {
@@ -36,16 +38,37 @@ public class MockController implements Runnable {
         this.commandQueue = commandQueue;
     }
     
+    /** Have run() return. It notices within INPUT_TIMEOUT_MS, even if no
+     *  sensor messages are arriving. */
+    public void stop() {
+        running = false;
+    }
+    
     public void run() {
         ArduinoMessage m = null;
-        while (true) {
-            // Read one sensor message.
-            m = sensorQueue.read();
-            Log.d(TAG, "Picked from sensor queue: " + m.obj);
+        while (running) {
+            // Read one sensor message. Don't wait forever, so we see if
+            // we've been stopped.
+            m = sensorQueue.read(Constants.INPUT_TIMEOUT_MS);
+            if (m == null) {
+                continue;
+            }
+            if (CommLog.TRACE) {
+                Log.d(TAG, "Picked from sensor queue: type = " + m.type
+                        + ", which = " + m.which + ", nvals = " + m.nvals
+                        + ", val1 = " + m.val1);
+            }
+            long sourceNanos = m.frameNanos;
             sensorQueue.giveback(m);
             
-            // Write one fake command.
-            m = commandQueue.obtain();
+            // Write one fake command. Note which sensor message it was in
+            // response to, so its reaction time gets measured.
+            m = commandQueue.obtain(mock_commands[which_command][0]);
+            if (m == null) {
+                // Timed out waiting for ArduinoOut. The queue counted it.
+                continue;
+            }
+            m.sourceNanos = sourceNanos;
             m.type = mock_commands[which_command][0];
             m.val1 = mock_commands[which_command][1];
             commandQueue.send(m);
@@ -1,9 +1,11 @@
 package org.jigsawrenaissance.ArduinoComm;
 
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
-
-import android.util.Log;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * Holds a FIFO for receiving or sending reusable message objects, and a pool
@@ -12,107 +14,568 @@ import android.util.Log;
  * a specified limit. It is the responsibility of the the recipient of messages
  * to give them back.
  * 
- * To read messages, call get() to wait if no messages are ready, or poll() to
+ * To read messages, call read() to wait if no messages are ready, or poll() to
  * return null in that case. To send, call obtain() to get a message object, up
- * to the specified limit, and put() to queue it up -- obtain() blocks if the
- * pool is exhausted; put() does not block.
+ * to the specified limit, and send() to queue it up. send() does not block.
+ * 
+ * What obtain() does if the pool is exhausted depends on the queue's policy
+ * (see setPolicy): wait, for up to the obtain timeout, for the reader to give
+ * a message back; take back the oldest unread message; or return null, so the
+ * sender drops its message. Under the conflate policy, send() also replaces
+ * any unread message with the same type and which, so the reader only sees
+ * the newest. Every message dropped, and every time a sender had to wait, is
+ * counted against the message type, so queue sizes can be chosen from how
+ * they behave in use.
+ * 
+ * Messages travel in lanes, chosen by message type (see setLane). A reader
+ * always gets the oldest message in the most urgent lane that has one, so
+ * e.g. a bumper hit overtakes GPS fixes that are already queued, without
+ * anyone blocking. Messages of one type are always in the same lane, so
+ * they stay in order. Each lane also has its own budget of messages:
+ * obtain(type) for an urgent type draws on the normal pool if it can, and
+ * on the urgent lane's own pool if not, so a flood of normal traffic can't
+ * use up the messages urgent traffic needs. obtain() with no type draws
+ * on the normal pool only.
+ * 
+ * Any number of threads may use a PoolQueue. If there is just one sender and
+ * one receiver, SpscPoolQueue does the same job without locks or allocation.
  * 
  * @author Pat Tressel
  */
 public class PoolQueue {
     public static final String TAG = "PoolQueue";
 
-    /** FIFO for passing messages to another thread. */
-    protected final LinkedBlockingDeque<ArduinoMessage> queue = new LinkedBlockingDeque<ArduinoMessage>();
-    /** Pool of messages available for use.
-     *  @ToDo: Does LinkedBlockingQueue allocate a new node when an element
-     *  is added, or does it keep a pool? If it's creating objects, switch to
-     *  an ad hoc linked list with a next field, as does Android's Message. */
-    protected final LinkedBlockingQueue<ArduinoMessage> pool = new LinkedBlockingQueue<ArduinoMessage>();
+    /** The FIFO and pool for one lane. */
+    protected static class Lane {
+        /** FIFO for passing messages to another thread. */
+        final ConcurrentLinkedQueue<ArduinoMessage> queue = new ConcurrentLinkedQueue<ArduinoMessage>();
+        /** Pool of messages available for use.
+         *  @ToDo: Does LinkedBlockingQueue allocate a new node when an
+         *  element is added, or does it keep a pool? If it's creating
+         *  objects, switch to an ad hoc linked list with a next field, as
+         *  does Android's Message. */
+        final LinkedBlockingQueue<ArduinoMessage> pool = new LinkedBlockingQueue<ArduinoMessage>();
+        /** Count of message objects created for this lane. */
+        int count = 0;
+        /** Max allowed message objects for this lane. */
+        final int max;
+        
+        Lane(int max) {
+            this.max = max;
+        }
+    }
+    
+    /** The lanes, by lane number, LANE_NORMAL first. */
+    protected final Lane[] lanes = new Lane[Constants.NUM_LANES];
+    /** One permit per message in all the lanes' FIFOs. */
+    protected final Semaphore ready = new Semaphore(0);
+    /** Lane for each message type. */
+    protected final byte[] laneOfType = new byte[256];
     /** Count of message objects created. */
     protected int count = 0;
-    /** Max allowed message objects for this queue. */
+    /** Max allowed message objects for this queue, all lanes together. */
     protected int max = 0;
     
+    /** What to do when the pool is empty -- one of Constants.POLICY_*. */
+    protected int policy = Constants.POLICY_BLOCK;
+    /** Longest obtain() waits under POLICY_BLOCK, or 0 to wait forever. */
+    protected long obtainTimeoutNanos = 0;
+    
+    /** Messages dropped, by type. */
+    protected final AtomicIntegerArray drops = new AtomicIntegerArray(256);
+    /** Times a sender had to wait for a message, by type. */
+    protected final AtomicIntegerArray stalls = new AtomicIntegerArray(256);
+    /** Time senders have spent waiting in obtain(), in ns. */
+    protected final StripedCounter blockedNanos = new StripedCounter();
+    /** Most messages there have been in the queue at once. */
+    protected final AtomicInteger highWater = new AtomicInteger(0);
+    
+    /** Under POLICY_CONFLATE, the messages sent and not yet read, so a
+     *  send can find one to replace. Also the lock for doing so. */
+    private final ArduinoMessage[] unread;
+    private int numUnread = 0;
+    
+    /** Lets the receiver know there's something in the queue, if it can't
+     *  just block in read(), e.g. because it is waiting in a Selector. */
+    public interface SendListener {
+        /** Called on the sender's thread after each send. */
+        void onSend(PoolQueue queue);
+    }
+    
+    /** Who to tell about sends, or null. */
+    protected volatile SendListener sendListener = null;
+    
+    /** Time messages spend in the queue, by message type. */
+    protected final LatencyStats waitLatency = new LatencyStats("wait");
+    
+    /** A queue with max messages, all for the normal lane. Urgent types
+     *  still overtake, but share the normal lane's messages. */
     public PoolQueue(int max) {
-        this.max = max;
+        this(max, 0);
+    }
+    
+    /** A queue with max messages for the normal lane, and urgentMax more
+     *  kept for the urgent lane. */
+    public PoolQueue(int max, int urgentMax) {
+        this.max = max + urgentMax;
+        lanes[Constants.LANE_NORMAL] = new Lane(max);
+        lanes[Constants.LANE_URGENT] = new Lane(urgentMax);
+        unread = new ArduinoMessage[this.max];
+    }
+    
+    /** Choose what happens when a sender needs a message and the pool is
+     *  empty -- one of Constants.POLICY_*. Set this up before the queue is
+     *  in use. */
+    public void setPolicy(int policy) {
+        if (policy < Constants.POLICY_BLOCK || policy > Constants.POLICY_CONFLATE) {
+            throw new IllegalArgumentException("No policy " + policy);
+        }
+        this.policy = policy;
+    }
+    
+    /** Longest obtain() waits for a message under POLICY_BLOCK before it
+     *  gives up and returns null, or 0 to wait as long as it takes. */
+    public void setObtainTimeout(long millis) {
+        obtainTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+    
+    /** Number of messages of type that were dropped. */
+    public int getDropCount(int type) {
+        return drops.get(type & 0xff);
+    }
+    
+    /** Number of times a sender of type had to wait for a message. */
+    public int getStallCount(int type) {
+        return stalls.get(type & 0xff);
+    }
+    
+    /** Add a line to text for each type with drops or stalls. */
+    public void describeCounts(StringBuilder text, String label) {
+        for (int type = 0; type < 256; ++type) {
+            int d = drops.get(type);
+            int s = stalls.get(type);
+            if (d != 0 || s != 0) {
+                text.append(label).append('[').append(type).append("] drops ")
+                    .append(d).append(" stalls ").append(s).append('\n');
+            }
+        }
+    }
+    
+    /** Number of messages sent and not yet read. */
+    public int getDepth() {
+        return ready.availablePermits();
+    }
+    
+    /** Most messages there have been in the queue at once. */
+    public int getHighWater() {
+        return highWater.get();
     }
     
-    /** Get an empty ArduinoMessage. */
+    /** Number of messages in the pools, ready to be obtained. Messages not
+     *  yet created aren't counted. */
+    public int getFree() {
+        int free = 0;
+        for (int lane = 0; lane < lanes.length; ++lane) {
+            free += lanes[lane].pool.size();
+        }
+        return free;
+    }
+    
+    /** Number of messages created so far, at most getMax(). */
+    public int getCreatedCount() {
+        return count;
+    }
+    
+    /** Most messages there may be, all lanes together. */
+    public int getMax() {
+        return max;
+    }
+    
+    /** Total time senders have waited in obtain(), in ns. */
+    public long getBlockedNanos() {
+        return blockedNanos.get();
+    }
+    
+    /** Register our depth, pool and counts with metrics, with names
+     *  starting with label. */
+    public void registerMetrics(Metrics metrics, String label) {
+        metrics.add(label + ".depth", new Metrics.Gauge() {
+            public long read() { return getDepth(); }
+        });
+        metrics.add(label + ".highWater", new Metrics.Gauge() {
+            public long read() { return getHighWater(); }
+        });
+        metrics.add(label + ".free", new Metrics.Gauge() {
+            public long read() { return getFree(); }
+        });
+        metrics.add(label + ".created", new Metrics.Gauge() {
+            public long read() { return getCreatedCount(); }
+        });
+        metrics.add(label + ".max", new Metrics.Gauge() {
+            public long read() { return getMax(); }
+        });
+        metrics.add(label + ".blockedNanos", blockedNanos);
+        metrics.add(label + ".drops", new Metrics.Gauge() {
+            public long read() { return sum(drops); }
+        });
+        metrics.add(label + ".stalls", new Metrics.Gauge() {
+            public long read() { return sum(stalls); }
+        });
+        metrics.add(label + "Wait", waitLatency);
+    }
+    
+    private static long sum(AtomicIntegerArray counts) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); ++i) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+    
+    /** Note the queue's depth after a send, for the high-water mark. */
+    protected final void noteDepth(int depth) {
+        int high;
+        while (depth > (high = highWater.get())) {
+            if (highWater.compareAndSet(high, depth)) {
+                break;
+            }
+        }
+    }
+    
+    /** Put messages of the given type in the given lane, one of
+     *  Constants.LANE_NORMAL or LANE_URGENT. Set this up before the queue
+     *  is in use. */
+    public void setLane(int type, int lane) {
+        if (lane < 0 || lane >= Constants.NUM_LANES) {
+            throw new IllegalArgumentException("No lane " + lane);
+        }
+        laneOfType[type & 0xff] = (byte)lane;
+    }
+    
+    /** Lane messages of the given type travel in. */
+    public final int laneOf(int type) {
+        return laneOfType[type & 0xff];
+    }
+    
+    /** Set the listener that is told about each send, or null for none. */
+    public void setSendListener(SendListener listener) {
+        sendListener = listener;
+    }
+    
+    /** Time from send to read, per message type. */
+    public LatencyStats getWaitLatency() {
+        return waitLatency;
+    }
+    
+    /** Stamp a message as it's sent. */
+    protected static void stampSend(ArduinoMessage m) {
+        m.enqueueNanos = System.nanoTime();
+    }
+    
+    /** Stamp a message as it's read, and record how long it waited. */
+    protected final ArduinoMessage stampRead(ArduinoMessage m) {
+        if (m != null) {
+            m.dequeueNanos = System.nanoTime();
+            waitLatency.record(m.type, m.enqueueNanos, m.dequeueNanos);
+        }
+        return m;
+    }
+    
+    /** Tell the listener, if any, about a send. */
+    protected final void notifySend() {
+        SendListener listener = sendListener;
+        if (listener != null) {
+            listener.onSend(this);
+        }
+    }
+    
+    /** Get an empty ArduinoMessage from the normal lane's pool, as for
+     *  obtain(type), with anything dropped or waited for counted against
+     *  type 0. */
     public ArduinoMessage obtain() {
-        Log.d(TAG, "In obtain.");
+        return obtain(0);
+    }
+    
+    /**
+     * Get an empty ArduinoMessage to send a message of the given type. If
+     * all the messages its lane may use are taken, what happens depends on
+     * the policy: under POLICY_BLOCK, this waits up to the obtain timeout;
+     * under POLICY_DROP_OLDEST, it takes back the oldest unread message in
+     * the same or a less urgent lane, or waits if there is none. Otherwise,
+     * or if the wait times out, it returns null, and the caller should drop
+     * its message -- that is counted here.
+     */
+    public ArduinoMessage obtain(int type) {
+        int lane = laneOf(type);
+        ArduinoMessage m = tryPools(lane);
+        if (m != null) {
+            return m;
+        }
+        if (policy == Constants.POLICY_DROP_OLDEST) {
+            m = reclaim(lane);
+            if (m != null) {
+                return m;
+            }
+        } else if (policy != Constants.POLICY_BLOCK) {
+            drops.incrementAndGet(type & 0xff);
+            return null;
+        }
+        stalls.incrementAndGet(type & 0xff);
+        if (lanes[lane].max == 0) {
+            lane = Constants.LANE_NORMAL;
+        }
+        long start = System.nanoTime();
+        m = obtainFrom(lane, obtainTimeoutNanos);
+        blockedNanos.add(System.nanoTime() - start);
+        if (m == null) {
+            drops.incrementAndGet(type & 0xff);
+        }
+        return m;
+    }
+    
+    /** Get an empty ArduinoMessage from the normal lane's pool if there's
+     *  one to be had right away, else return null. For senders that must
+     *  not block, and don't yet know the message type. Nothing is counted
+     *  -- call tryObtain(type) once the type is known. */
+    public ArduinoMessage tryObtain() {
+        return tryObtainFrom(Constants.LANE_NORMAL);
+    }
+    
+    /** As obtain(type), but never waits: returns null, counted as a drop,
+     *  where obtain would wait. */
+    public ArduinoMessage tryObtain(int type) {
+        int lane = laneOf(type);
+        ArduinoMessage m = tryPools(lane);
+        if (m == null && policy == Constants.POLICY_DROP_OLDEST) {
+            m = reclaim(lane);
+        }
+        if (m == null) {
+            drops.incrementAndGet(type & 0xff);
+        }
+        return m;
+    }
+    
+    /** Get a message from the normal pool, or if it's empty, lane's own. */
+    private ArduinoMessage tryPools(int lane) {
+        ArduinoMessage m = tryObtainFrom(Constants.LANE_NORMAL);
+        if (m == null && lane != Constants.LANE_NORMAL) {
+            m = tryObtainFrom(lane);
+        }
+        return m;
+    }
+    
+    /** Under POLICY_DROP_OLDEST, take back the oldest unread message in lane
+     *  or a less urgent one, counted as a drop, or return null if there
+     *  isn't one. */
+    protected ArduinoMessage reclaim(int lane) {
+        if (!ready.tryAcquire()) {
+            return null;
+        }
+        for (int l = Constants.LANE_NORMAL; l <= lane; ++l) {
+            ArduinoMessage m = lanes[l].queue.poll();
+            if (m != null) {
+                if (CommLog.TRACE) CommLog.trace(CommLog.SEND_DISCARD, m.type, m.which);
+                drops.incrementAndGet(m.type & 0xff);
+                m.sourceNanos = 0;
+                return m;
+            }
+        }
+        // What's unread is all more urgent than we are. Leave it.
+        ready.release();
+        return null;
+    }
+    
+    /** Get a message from lane's pool, waiting up to timeoutNanos, or
+     *  forever if that's 0, if there are none. Returns null if the wait
+     *  times out. */
+    protected ArduinoMessage obtainFrom(int lane, long timeoutNanos) {
+        if (CommLog.TRACE) CommLog.trace(CommLog.OBTAIN, count, lane);
+        Lane l = lanes[lane];
         ArduinoMessage message = null;
-        synchronized (pool) {
-            message = pool.poll();
-            if (message == null && count < max) {
-                message = new ArduinoMessage();
-                ++count;
-                Log.d(TAG, "Made a new message, count is " + count);
+        synchronized (l) {
+            message = l.pool.poll();
+            if (message == null && l.count < l.max) {
+                message = newMessage(lane);
+                if (CommLog.TRACE) CommLog.trace(CommLog.OBTAIN_NEW, count, lane);
             }
-            while (message == null) {
-                // We're run out of messages and hit the max -- wait for one to
-                // be returned.
-                try {
-                    Log.d(TAG, "At max count of messages, waiting for a return.");
-                    message = pool.take();
-                    break;
-                } catch (InterruptedException e) { }
+        }
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (message == null) {
+            // We're run out of messages and hit the max -- wait for one to
+            // be returned.
+            try {
+                if (CommLog.TRACE) CommLog.trace(CommLog.OBTAIN_WAIT, count, lane);
+                if (timeoutNanos == 0) {
+                    message = l.pool.take();
+                } else {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        return null;
+                    }
+                    message = l.pool.poll(left, TimeUnit.NANOSECONDS);
+                }
+            } catch (InterruptedException e) { }
+        }
+        message.sourceNanos = 0;
+        return message;
+    }
+    
+    /** Get a message from lane's pool, or null if there are none. */
+    protected ArduinoMessage tryObtainFrom(int lane) {
+        Lane l = lanes[lane];
+        ArduinoMessage message;
+        synchronized (l) {
+            message = l.pool.poll();
+            if (message == null && l.count < l.max) {
+                message = newMessage(lane);
             }
-            Log.d(TAG, "Have an available message.");
+        }
+        if (message != null) {
+            message.sourceNanos = 0;
         }
         return message;
     }
     
-    /** Return a spent ArduinoMessage. */
+    /** Create every message the queue may have, now, rather than as the
+     *  pool runs dry, so none are made once traffic is flowing. (An
+     *  SpscPoolQueue has them all from the start.) */
+    public void prefill() {
+        for (int lane = 0; lane < lanes.length; ++lane) {
+            Lane l = lanes[lane];
+            synchronized (l) {
+                while (l.count < l.max) {
+                    l.pool.add(newMessage(lane));
+                }
+            }
+        }
+    }
+    
+    /** Make a message belonging to lane's pool. Call with the lane locked. */
+    private ArduinoMessage newMessage(int lane) {
+        ArduinoMessage message = new ArduinoMessage();
+        message.poolLane = lane;
+        ++lanes[lane].count;
+        ++count;
+        return message;
+    }
+    
+    /** Return a spent ArduinoMessage. It goes back to the pool it came
+     *  from, whatever lane it was sent in. */
     public void giveback(ArduinoMessage empty) {
-        Log.d(TAG, "In giveback.");
+        if (CommLog.TRACE) CommLog.trace(CommLog.GIVEBACK, empty.type, 0);
         while (true) {
             try {
-                pool.put(empty);
+                lanes[empty.poolLane].pool.put(empty);
                 break;
             } catch (InterruptedException e) { }
         }
     }
     
+    /** Take the oldest message from the most urgent lane that has one. Call
+     *  only with a permit from ready, so there is one. */
+    private ArduinoMessage takeReady() {
+        while (true) {
+            for (int lane = lanes.length - 1; lane >= 0; --lane) {
+                ArduinoMessage m = lanes[lane].queue.poll();
+                if (m != null) {
+                    return m;
+                }
+            }
+            // The sender releases the permit after queuing the message, so
+            // it's there -- but with several readers, another may have taken
+            // the message we were counting on, and left us a later one that
+            // isn't visible yet. Look again.
+        }
+    }
+    
+    /** takeReady, and under POLICY_CONFLATE, note the message is read. */
+    private ArduinoMessage takeNext() {
+        if (policy != Constants.POLICY_CONFLATE) {
+            return takeReady();
+        }
+        synchronized (unread) {
+            ArduinoMessage m = takeReady();
+            for (int i = 0; i < numUnread; ++i) {
+                if (unread[i] == m) {
+                    unread[i] = unread[--numUnread];
+                    unread[numUnread] = null;
+                    break;
+                }
+            }
+            return m;
+        }
+    }
+    
     /** Read the next message from the queue. If none is available, this
      *  blocks until a message arrives. */
     public ArduinoMessage read() {
-        Log.d(TAG, "In read.");
-        while (true) {
-            try {
-                return queue.takeFirst();
-            } catch (InterruptedException e) { }
+        ready.acquireUninterruptibly();
+        ArduinoMessage m = stampRead(takeNext());
+        if (CommLog.TRACE) CommLog.trace(CommLog.READ, m.type, m.which);
+        return m;
+    }
+    
+    /** Read the next message from the queue, waiting up to timeoutMs for
+     *  one to arrive. Returns null if none did, or if we're interrupted. */
+    public ArduinoMessage read(long timeoutMs) {
+        try {
+            if (!ready.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
+        ArduinoMessage m = stampRead(takeNext());
+        if (CommLog.TRACE) CommLog.trace(CommLog.READ, m.type, m.which);
+        return m;
     }
     
     /** Read the next message from the queue. If none is currently available,
      *  return null. */ 
     public ArduinoMessage poll() {
-        Log.d(TAG, "In poll.");
-        return queue.pollFirst();
+        if (!ready.tryAcquire()) {
+            return null;
+        }
+        ArduinoMessage m = stampRead(takeNext());
+        if (CommLog.TRACE) CommLog.trace(CommLog.POLL, m.type, m.which);
+        return m;
     }
     
-    /** Send a message. */
+    /** Send a message. Under POLICY_CONFLATE, if there's an unread message
+     *  with the same type and which, this overwrites it instead, and m is
+     *  given back. */
     public void send(ArduinoMessage m) {
-        Log.d(TAG, "In send.");
-        
-        // Just for testing, strip off and give back anything found in the
-        // queue so it doesn't grow.
-        ArduinoMessage x = null;
-        do {
-            x = poll();
-            if (x != null) {
-                String xo = (x.obj != null) ? x.obj.toString() : "null";
-                Log.d(TAG, "Removed queued message with obj: " + xo);
-                giveback(x);
+        if (CommLog.TRACE) CommLog.trace(CommLog.SEND, m.type, m.which);
+        if (policy == Constants.POLICY_CONFLATE) {
+            synchronized (unread) {
+                for (int i = 0; i < numUnread; ++i) {
+                    ArduinoMessage old = unread[i];
+                    if (old.type == m.type && old.which == m.which) {
+                        // It's waited since it was first sent.
+                        long enqueueNanos = old.enqueueNanos;
+                        old.copyFrom(m);
+                        old.enqueueNanos = enqueueNanos;
+                        if (CommLog.TRACE) CommLog.trace(CommLog.SEND_DISCARD, m.type, m.which);
+                        drops.incrementAndGet(m.type & 0xff);
+                        giveback(m);
+                        return;
+                    }
+                }
+                unread[numUnread++] = m;
+                enqueue(m);
             }
-        } while (x != null);
-        
-        while (true) {
-            try {
-                queue.putLast(m);
-                break;
-            } catch (InterruptedException e) { }
+        } else {
+            enqueue(m);
         }
+        notifySend();
+    }
+    
+    /** Put m in its lane's FIFO. */
+    private void enqueue(ArduinoMessage m) {
+        stampSend(m);
+        lanes[laneOf(m.type)].queue.offer(m);
+        ready.release();
+        noteDepth(ready.availablePermits());
     }
 }
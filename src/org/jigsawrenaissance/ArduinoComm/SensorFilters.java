@@ -0,0 +1,263 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import java.util.Arrays;
+
+/**
+ * Filters sensor readings before they're queued, so the controller gets
+ * fewer, cleaner messages rather than filtering every raw reading itself.
+ * Each sensor, by (board, type, which), may have a filter, which sees every
+ * reading and passes on one message every so many readings in place of the
+ * raw ones, so boards running the same sketch are filtered apart. Sensors
+ * without a filter pass straight through.
+ *
+ * The filters are:
+ *   FILTER_MEDIAN: median of each value over the last window readings --
+ *     e.g. for sonar, whose echoes give the odd wild reading.
+ *   FILTER_MIN: minimum of each value over the last window readings -- e.g.
+ *     for a range finder, where the nearest thing seen lately is what
+ *     matters.
+ *   FILTER_DELTA: the sum of the first window values over the readings
+ *     since the last message, with any later values as of the latest
+ *     reading -- e.g. for optical flow, whose x and y are motion since the
+ *     previous reading, and whose other values are levels.
+ *
+ * A filter's state is kept in int arrays made when it's set, so filtering
+ * allocates nothing. The minimum is kept with a monotonic queue, so it's
+ * O(1) per reading on average. The median keeps the window sorted, which is
+ * O(window), but windows are a handful of readings.
+ *
+ * Set up filters before input starts to arrive. After that, each sensor's
+ * readings must all be filtered on one thread -- ArduinoIn sends each
+ * sensor's frames to the same DecodeStage -- though different sensors may
+ * be filtered on different threads.
+ *
+ * @author Pat Tressel
+ */
+public class SensorFilters {
+    public static final String TAG = "SensorFilters";
+
+    /** Filter for each sensor, by SensorSnapshot.key, or null. */
+    private final Filter[] filters = new Filter[Constants.MAX_BOARDS
+            * SensorSnapshot.MAX_TYPE * SensorSnapshot.MAX_WHICH];
+
+    /**
+     * Filter a sensor's readings on every board. Each board gets a filter of
+     * its own.
+     */
+    public void set(int type, int which, int kind, int window, int every) {
+        set(-1, type, which, kind, window, every);
+    }
+
+    /**
+     * Filter a sensor's readings. If board is -1, the sensor on each board
+     * gets a filter of its own, and likewise if which is -1, each sensor of
+     * the type does.
+     *
+     * @param kind one of the FILTER_ constants; FILTER_NONE removes the
+     *  filter
+     * @param window readings to take the median or minimum over, or for
+     *  FILTER_DELTA, number of leading values to sum
+     * @param every pass on one message per this many readings
+     */
+    public void set(int board, int type, int which, int kind, int window, int every) {
+        if (board < -1 || board >= Constants.MAX_BOARDS
+                || type < 0 || type >= SensorSnapshot.MAX_TYPE
+                || which < -1 || which >= SensorSnapshot.MAX_WHICH) {
+            throw new IllegalArgumentException("No such sensor: "
+                    + board + "/" + type + "/" + which);
+        }
+        if (kind < Constants.FILTER_NONE || kind > Constants.FILTER_DELTA) {
+            throw new IllegalArgumentException("No such filter: " + kind);
+        }
+        if (window < 1 || window > Constants.MAX_FILTER_WINDOW || every < 1) {
+            throw new IllegalArgumentException("Bad window or rate: " + window + ", " + every);
+        }
+        if (board < 0) {
+            for (int b = 0; b < Constants.MAX_BOARDS; ++b) {
+                set(b, type, which, kind, window, every);
+            }
+            return;
+        }
+        if (which < 0) {
+            for (int w = 0; w < SensorSnapshot.MAX_WHICH; ++w) {
+                set(board, type, w, kind, window, every);
+            }
+            return;
+        }
+        filters[SensorSnapshot.key(board, type, which)] =
+            (kind == Constants.FILTER_NONE) ? null : new Filter(kind, window, every);
+    }
+
+    /**
+     * Filter m in place. Returns false if m is held back, i.e. nothing is
+     * to be passed on for this reading.
+     */
+    public boolean apply(ArduinoMessage m) {
+        int key = SensorSnapshot.key(m.board, m.type, m.which);
+        if (key < 0) {
+            return true;
+        }
+        Filter f = filters[key];
+        return (f == null) || f.apply(m);
+    }
+
+    /** One sensor's filter. Each of the message's values is filtered on
+     *  its own. Arrays with a window per value hold value v's window at
+     *  v * window. */
+    private static final class Filter {
+        private static final int VALUES = Constants.MAX_MESSAGE_VALUES;
+
+        private final int kind;
+        private final int window;
+        private final int every;
+        /** Number of values the readings have had. If it changes, we start
+         *  over. */
+        private int nvals = -1;
+        /** Readings since the last message. */
+        private int pending = 0;
+        /** Readings since we started, which numbers them. */
+        private long seen = 0;
+
+        // FILTER_MEDIAN: the last window readings in arrival order (a ring),
+        // and the same sorted.
+        private int[] recent;
+        private int[] sorted;
+        private int filled = 0;
+
+        // FILTER_MIN: for each value, a queue of (value, reading number) in
+        // which the values increase, so the front is the minimum. A ring of
+        // window entries, from head, size long.
+        private int[] minValue;
+        private long[] minSeen;
+        private int[] head;
+        private int[] size;
+
+        // FILTER_DELTA: sums since the last message.
+        private long[] sums;
+
+        Filter(int kind, int window, int every) {
+            this.kind = kind;
+            this.window = window;
+            this.every = every;
+            switch (kind) {
+            case Constants.FILTER_MEDIAN:
+                recent = new int[window * VALUES];
+                sorted = new int[window * VALUES];
+                break;
+            case Constants.FILTER_MIN:
+                minValue = new int[window * VALUES];
+                minSeen = new long[window * VALUES];
+                head = new int[VALUES];
+                size = new int[VALUES];
+                break;
+            default:
+                sums = new long[VALUES];
+                break;
+            }
+        }
+
+        boolean apply(ArduinoMessage m) {
+            int n = Math.min(m.nvals, VALUES);
+            if (n != nvals) {
+                reset(n);
+            }
+            int slot = (int)(seen % window);
+            for (int v = 0; v < n; ++v) {
+                int x = m.getValue(v + 1);
+                switch (kind) {
+                case Constants.FILTER_MEDIAN:
+                    addMedian(v, slot, x);
+                    break;
+                case Constants.FILTER_MIN:
+                    addMin(v, x);
+                    break;
+                default:
+                    if (v < window) {
+                        sums[v] += x;
+                    }
+                    break;
+                }
+            }
+            ++seen;
+            if (filled < window) {
+                ++filled;
+            }
+            if (++pending < every) {
+                return false;
+            }
+            pending = 0;
+            for (int v = 0; v < n; ++v) {
+                switch (kind) {
+                case Constants.FILTER_MEDIAN:
+                    m.setValue(v + 1, sorted[v * window + (filled - 1) / 2]);
+                    break;
+                case Constants.FILTER_MIN:
+                    m.setValue(v + 1, minValue[v * window + head[v]]);
+                    break;
+                default:
+                    if (v < window) {
+                        m.setValue(v + 1, (int)sums[v]);
+                        sums[v] = 0;
+                    }
+                    break;
+                }
+            }
+            return true;
+        }
+
+        /** Put x in value v's window, in place of the oldest if it's full. */
+        private void addMedian(int v, int slot, int x) {
+            int base = v * window;
+            int count = filled;
+            if (count == window) {
+                // Take out the reading x replaces.
+                int old = recent[base + slot];
+                int i = 0;
+                while (sorted[base + i] != old) {
+                    ++i;
+                }
+                System.arraycopy(sorted, base + i + 1, sorted, base + i, count - i - 1);
+                --count;
+            }
+            recent[base + slot] = x;
+            int i = count;
+            while (i > 0 && sorted[base + i - 1] > x) {
+                sorted[base + i] = sorted[base + i - 1];
+                --i;
+            }
+            sorted[base + i] = x;
+        }
+
+        /** Add x to value v's queue of candidate minima. */
+        private void addMin(int v, int x) {
+            int base = v * window;
+            // Readings that have left the window can't be the minimum.
+            if (size[v] > 0 && minSeen[base + head[v]] <= seen - window) {
+                head[v] = (head[v] + 1) % window;
+                --size[v];
+            }
+            // Nor can any no smaller than x, as x will outlast them.
+            while (size[v] > 0 && minValue[base + (head[v] + size[v] - 1) % window] >= x) {
+                --size[v];
+            }
+            int tail = (head[v] + size[v]) % window;
+            minValue[base + tail] = x;
+            minSeen[base + tail] = seen;
+            ++size[v];
+        }
+
+        private void reset(int n) {
+            nvals = n;
+            pending = 0;
+            seen = 0;
+            filled = 0;
+            if (sums != null) {
+                Arrays.fill(sums, 0);
+            }
+            if (size != null) {
+                Arrays.fill(size, 0);
+                Arrays.fill(head, 0);
+            }
+        }
+    }
+}
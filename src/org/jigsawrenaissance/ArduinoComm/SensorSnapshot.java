@@ -0,0 +1,226 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Holds the newest reading from each sensor, keyed by (board, type, which),
+ * so boards running the same sketch keep apart. This sits beside the sensor
+ * queue: ArduinoIn overwrites a sensor's slot in place
+ * with every message, so a controller that only cares about current values
+ * can look them up here, and one chatty sensor can't push the others out.
+ *
+ * Each sensor has one writer -- ArduinoIn's decode stage for it -- though
+ * different sensors may be written by different threads, and there may be
+ * any number of readers. Each slot is guarded by a sequence number, as in a
+ * seqlock: the writer makes it odd
+ * while it updates the slot and even when done, and a reader retries if the
+ * number was odd or changed while it was copying. So readers never block
+ * the writer, and each reading a reader gets is consistent -- values are
+ * never mixed from two messages. (Different sensors' readings may of course
+ * be from different times -- check the time field.)
+ *
+ * The values are kept in atomic arrays, rather than plain ones, only so
+ * that the Java memory model guarantees the reader's copy happens between
+ * its two looks at the sequence number. Nothing is allocated after the
+ * constructor. Adding a sensor's slot takes a lock, but that happens once
+ * per sensor.
+ *
+ * @author Pat Tressel
+ */
+public class SensorSnapshot {
+    public static final String TAG = "SensorSnapshot";
+
+    /** Sensor types must be less than this. Types from $PRSOxnn are one hex
+     *  digit. */
+    public static final int MAX_TYPE = 16;
+    /** Which values must be less than this, as they're two decimal digits. */
+    public static final int MAX_WHICH = 100;
+
+    /** Per slot: nvals, then the values. */
+    private static final int STRIDE = 1 + Constants.MAX_MESSAGE_VALUES;
+
+    /** Slot number + 1 for each key, or 0 if the sensor hasn't been seen. */
+    private final AtomicIntegerArray slotOf =
+        new AtomicIntegerArray(Constants.MAX_BOARDS * MAX_TYPE * MAX_WHICH);
+    /** Key of each slot, in the order sensors were first seen. */
+    private final AtomicIntegerArray keyOf;
+    /** Number of slots in use. */
+    private final AtomicInteger used = new AtomicInteger(0);
+    /** Sequence number for each slot. Odd while the slot is being written. */
+    private final AtomicLongArray seq;
+    /** Message time for each slot. */
+    private final AtomicLongArray time;
+    /** nvals and values for each slot. */
+    private final AtomicIntegerArray data;
+
+    public SensorSnapshot(int capacity) {
+        keyOf = new AtomicIntegerArray(capacity);
+        seq = new AtomicLongArray(capacity);
+        time = new AtomicLongArray(capacity);
+        data = new AtomicIntegerArray(capacity * STRIDE);
+    }
+
+    /** Number of distinct sensors seen so far. */
+    public int size() {
+        return used.get();
+    }
+
+    /** Key of a sensor, or -1 if its board, type or which is out of range. */
+    static int key(int board, int type, int which) {
+        if (board < 0 || board >= Constants.MAX_BOARDS || type < 0 || type >= MAX_TYPE
+                || which < 0 || which >= MAX_WHICH) {
+            return -1;
+        }
+        return (board * MAX_TYPE + type) * MAX_WHICH + which;
+    }
+
+    /**
+     * Sensor's writer only: store m as the newest reading for its sensor.
+     * Returns false if the sensor can't be stored, because its board, type
+     * or which is out of range, or all slots are taken by other sensors.
+     */
+    public boolean update(ArduinoMessage m) {
+        int key = key(m.board, m.type, m.which);
+        if (key < 0) {
+            return false;
+        }
+        int slot = slotOf.get(key) - 1;
+        if (slot < 0) {
+            slot = addSlot(key);
+            if (slot < 0) {
+                return false;
+            }
+        }
+
+        long s = seq.get(slot);
+        seq.set(slot, s + 1);
+        time.lazySet(slot, m.time);
+        int base = slot * STRIDE;
+        data.lazySet(base, m.nvals);
+        for (int i = 1; i <= m.nvals; ++i) {
+            data.lazySet(base + i, m.getValue(i));
+        }
+        seq.lazySet(slot, s + 2);
+        return true;
+    }
+
+    /** First time we've seen this sensor: give it a slot, or return -1 if
+     *  they're all taken. Writers of other sensors may be adding theirs. */
+    private synchronized int addSlot(int key) {
+        int slot = slotOf.get(key) - 1;
+        if (slot >= 0) {
+            return slot;
+        }
+        slot = used.get();
+        if (slot == keyOf.length()) {
+            return -1;
+        }
+        keyOf.set(slot, key);
+        used.set(slot + 1);
+        // Publish the key last, so a reader that finds the slot through it
+        // sees a slot that is set up. Its sequence number is still 0, so it
+        // reads as empty until the first write completes.
+        slotOf.set(key, slot + 1);
+        return slot;
+    }
+
+    /**
+     * Copy the newest reading for the given sensor on the given board into
+     * m. Returns false, leaving m alone, if no reading has arrived for the
+     * sensor.
+     */
+    public boolean read(int board, int type, int which, ArduinoMessage m) {
+        int key = key(board, type, which);
+        if (key < 0) {
+            return false;
+        }
+        int slot = slotOf.get(key) - 1;
+        if (slot < 0) {
+            return false;
+        }
+        return readSlot(slot, m);
+    }
+
+    /** As read(board, type, which, m), for DEFAULT_BOARD. */
+    public boolean read(int type, int which, ArduinoMessage m) {
+        return read(Constants.DEFAULT_BOARD, type, which, m);
+    }
+
+    /**
+     * Copy the newest reading of every sensor seen so far into the supplied
+     * messages, in the order the sensors were first seen, as many as fit.
+     * Each message is consistent in itself.
+     *
+     * @return the number of messages filled in
+     */
+    public int readAll(ArduinoMessage[] into) {
+        int n = Math.min(used.get(), into.length);
+        int filled = 0;
+        for (int slot = 0; slot < n; ++slot) {
+            if (readSlot(slot, into[filled])) {
+                ++filled;
+            }
+        }
+        return filled;
+    }
+
+    /**
+     * Number of times the given sensor on the given board has been updated,
+     * or 0 if never. A reader can compare this against a previous value to
+     * tell if there's anything new, without copying the reading.
+     */
+    public long version(int board, int type, int which) {
+        int key = key(board, type, which);
+        if (key < 0) {
+            return 0;
+        }
+        int slot = slotOf.get(key) - 1;
+        if (slot < 0) {
+            return 0;
+        }
+        return seq.get(slot) >>> 1;
+    }
+
+    /** As version(board, type, which), for DEFAULT_BOARD. */
+    public long version(int type, int which) {
+        return version(Constants.DEFAULT_BOARD, type, which);
+    }
+
+    /** Copy out one slot, retrying until we get a consistent copy. */
+    private boolean readSlot(int slot, ArduinoMessage m) {
+        int key = keyOf.get(slot);
+        int base = slot * STRIDE;
+        while (true) {
+            long s1 = seq.get(slot);
+            if (s1 == 0) {
+                // Slot allocated but not yet written.
+                return false;
+            }
+            if ((s1 & 1) != 0) {
+                // Writer is busy with this slot.
+                Thread.yield();
+                continue;
+            }
+            long t = time.get(slot);
+            int nvals = data.get(base);
+            if (nvals > Constants.MAX_MESSAGE_VALUES) {
+                // Torn read -- will be caught below, but don't index off
+                // the end of the slot meanwhile.
+                nvals = 0;
+            }
+            for (int i = 1; i <= nvals; ++i) {
+                m.setValue(i, data.get(base + i));
+            }
+            if (seq.get(slot) == s1) {
+                m.board = key / (MAX_TYPE * MAX_WHICH);
+                m.type = key / MAX_WHICH % MAX_TYPE;
+                m.which = key % MAX_WHICH;
+                m.time = t;
+                m.nvals = nvals;
+                return true;
+            }
+        }
+    }
+}
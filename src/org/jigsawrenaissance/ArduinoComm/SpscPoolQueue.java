@@ -0,0 +1,332 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A PoolQueue for the case where exactly one thread sends (calls obtain()
+ * and send()) and exactly one thread receives (calls read() or poll(), and
+ * giveback()). That is the case for ArduinoIn -> controller and
+ * controller -> ArduinoOut.
+ *
+ * All max messages are created up front. The FIFO and the pool are each a
+ * fixed array of slots used as a ring, with one index advanced only by the
+ * thread that puts and one only by the thread that takes, so neither side
+ * takes a lock and nothing is allocated per message. Since no more than max
+ * messages exist, neither ring can overflow.
+ *
+ * Each lane has its own pair of rings. The pool rings hold each lane's own
+ * budget of messages; the queue rings are each big enough for every
+ * message, since any message may be sent in an urgent lane. The receiver
+ * looks at the urgent lane's ring first.
+ *
+ * A thread that has to wait (read() on an empty queue, or obtain() on an
+ * empty pool) spins briefly, then parks until the other side wakes it.
+ *
+ * Only POLICY_BLOCK and POLICY_DROP_NEWEST are supported. Dropping the
+ * oldest message, or conflating, would have the sender take or change
+ * messages at the receiver's end of the queue, which only the receiver may
+ * touch.
+ *
+ * @author Pat Tressel
+ */
+public class SpscPoolQueue extends PoolQueue {
+    public static final String TAG = "SpscPoolQueue";
+
+    /** How many times to retry before yielding. */
+    private static final int SPINS = 100;
+    /** How many times to yield before parking. Yielding lets the other side
+     *  run if we're sharing a core with it. */
+    private static final int YIELDS = 10;
+
+    /** Messages sent and not yet read, by lane. Sender puts, receiver
+     *  takes. */
+    private final Ring[] queueRings = new Ring[Constants.NUM_LANES];
+    /** Messages available for obtain(), by lane. Receiver puts, sender
+     *  takes. */
+    private final Ring[] poolRings = new Ring[Constants.NUM_LANES];
+    /** The receiver, if it's parked waiting in read(). */
+    private final Waiter reader = new Waiter();
+
+    public SpscPoolQueue(int max) {
+        this(max, 0);
+    }
+
+    /** A queue with max messages for the normal lane, and urgentMax more
+     *  for the urgent lane. */
+    public SpscPoolQueue(int max, int urgentMax) {
+        super(max, urgentMax);
+        for (int lane = 0; lane < Constants.NUM_LANES; ++lane) {
+            queueRings[lane] = new Ring(this.max, reader);
+            poolRings[lane] = new Ring(lanes[lane].max, new Waiter());
+            for (int i = 0; i < lanes[lane].max; ++i) {
+                ArduinoMessage m = new ArduinoMessage();
+                m.poolLane = lane;
+                poolRings[lane].offer(m);
+            }
+            lanes[lane].count = lanes[lane].max;
+        }
+        count = this.max;
+    }
+
+    /** As for PoolQueue, but only POLICY_BLOCK and POLICY_DROP_NEWEST. */
+    @Override
+    public void setPolicy(int policy) {
+        if (policy != Constants.POLICY_BLOCK && policy != Constants.POLICY_DROP_NEWEST) {
+            throw new IllegalArgumentException("SpscPoolQueue can't use policy " + policy);
+        }
+        super.setPolicy(policy);
+    }
+
+    /** Get an empty ArduinoMessage from lane's pool. If all are in use,
+     *  waits up to timeoutNanos, or forever if that's 0, and returns null if
+     *  none comes back in time. */
+    @Override
+    protected ArduinoMessage obtainFrom(int lane, long timeoutNanos) {
+        if (CommLog.TRACE) CommLog.trace(CommLog.OBTAIN, count, lane);
+        ArduinoMessage m = poolRings[lane].take(timeoutNanos);
+        if (m != null) {
+            m.sourceNanos = 0;
+        }
+        return m;
+    }
+
+    /** Get an empty ArduinoMessage from lane's pool, or null if all are in
+     *  use. */
+    @Override
+    protected ArduinoMessage tryObtainFrom(int lane) {
+        ArduinoMessage m = poolRings[lane].poll();
+        if (m != null) {
+            m.sourceNanos = 0;
+        }
+        return m;
+    }
+
+    /** Return a spent ArduinoMessage. Only the receiver may call this. */
+    @Override
+    public void giveback(ArduinoMessage empty) {
+        if (CommLog.TRACE) CommLog.trace(CommLog.GIVEBACK, empty.type, 0);
+        poolRings[empty.poolLane].offer(empty);
+    }
+
+    /** Read the next message from the queue. If none is available, this
+     *  blocks until a message arrives. */
+    @Override
+    public ArduinoMessage read() {
+        return take(-1);
+    }
+
+    /** Read the next message from the queue, waiting up to timeoutMs for
+     *  one to arrive. Returns null if none did. */
+    @Override
+    public ArduinoMessage read(long timeoutMs) {
+        return take(TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+    }
+
+    /** Spin, then yield, then park until a message arrives, or until
+     *  timeoutNanos have passed if that's not negative. */
+    private ArduinoMessage take(long timeoutNanos) {
+        ArduinoMessage m = pollLanes();
+        for (int spin = 0; m == null && spin < SPINS; ++spin) {
+            m = pollLanes();
+        }
+        for (int spin = 0; m == null && spin < YIELDS; ++spin) {
+            Thread.yield();
+            m = pollLanes();
+        }
+        if (m == null) {
+            long deadline = System.nanoTime() + timeoutNanos;
+            reader.thread = Thread.currentThread();
+            try {
+                // Check again after announcing ourselves, in case the sender
+                // sent in between.
+                while ((m = pollLanes()) == null) {
+                    if (timeoutNanos < 0) {
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) {
+                        return null;
+                    }
+                    LockSupport.parkNanos(this, wait);
+                }
+            } finally {
+                reader.thread = null;
+            }
+        }
+        stampRead(m);
+        if (CommLog.TRACE) CommLog.trace(CommLog.READ, m.type, m.which);
+        return m;
+    }
+
+    /** Read the next message from the queue. If none is currently available,
+     *  return null. */
+    @Override
+    public ArduinoMessage poll() {
+        ArduinoMessage m = stampRead(pollLanes());
+        if (CommLog.TRACE && m != null) CommLog.trace(CommLog.POLL, m.type, m.which);
+        return m;
+    }
+
+    /** Take the oldest message in the most urgent lane that has one. */
+    private ArduinoMessage pollLanes() {
+        for (int lane = Constants.NUM_LANES - 1; lane >= 0; --lane) {
+            ArduinoMessage m = queueRings[lane].poll();
+            if (m != null) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    /** Send a message. Only the sender may call this. */
+    @Override
+    public void send(ArduinoMessage m) {
+        if (CommLog.TRACE) CommLog.trace(CommLog.SEND, m.type, m.which);
+        stampSend(m);
+        queueRings[laneOf(m.type)].offer(m);
+        noteDepth(getDepth());
+        notifySend();
+    }
+
+    /** Number of messages sent and not yet read. */
+    @Override
+    public int getDepth() {
+        int depth = 0;
+        for (int lane = 0; lane < Constants.NUM_LANES; ++lane) {
+            depth += queueRings[lane].size();
+        }
+        return depth;
+    }
+
+    /** Number of messages in the pools, ready to be obtained. */
+    @Override
+    public int getFree() {
+        int free = 0;
+        for (int lane = 0; lane < Constants.NUM_LANES; ++lane) {
+            free += poolRings[lane].size();
+        }
+        return free;
+    }
+
+    /** The consumer thread of one or more Rings, if it's parked waiting. */
+    private static final class Waiter {
+        volatile Thread thread = null;
+    }
+
+    /**
+     * Single-producer single-consumer ring of message references. The
+     * capacity is rounded up to a power of two, so the slot is just the
+     * masked index. head and tail count up forever -- a long won't wrap.
+     */
+    private static final class Ring {
+        private final ArduinoMessage[] slots;
+        private final int mask;
+        /** Next slot to take. Written only by the consumer. */
+        private final AtomicLong head = new AtomicLong(0);
+        /** Next slot to fill. Written only by the producer. */
+        private final AtomicLong tail = new AtomicLong(0);
+        /** Consumer's copy of tail, so it needn't read the shared one for
+         *  every message when several are ready. */
+        private long tailCache = 0;
+        /** Producer's copy of head. */
+        private long headCache = 0;
+        /** Consumer thread, if it's parked waiting for a message. Rings
+         *  that are read together share one. */
+        private final Waiter waiter;
+
+        Ring(int capacity, Waiter waiter) {
+            this.waiter = waiter;
+            int size = 1;
+            while (size < capacity) {
+                size <<= 1;
+            }
+            slots = new ArduinoMessage[size];
+            mask = size - 1;
+        }
+
+        /** Producer side: add a message. Never blocks. */
+        void offer(ArduinoMessage m) {
+            long t = tail.get();
+            if (t - headCache == slots.length) {
+                headCache = head.get();
+                if (t - headCache == slots.length) {
+                    // Can't happen unless someone gave back a message that
+                    // didn't come from this queue.
+                    throw new IllegalStateException("Ring is full");
+                }
+            }
+            slots[(int)t & mask] = m;
+            // The slot write is published by the tail write. This is a full
+            // volatile write, rather than lazySet, so it's ordered before we
+            // check for a waiter -- otherwise the consumer could park just
+            // after we looked.
+            tail.set(t + 1);
+            Thread w = waiter.thread;
+            if (w != null) {
+                LockSupport.unpark(w);
+            }
+        }
+
+        /** Number of messages in the ring. From any thread, this may be
+         *  out of date by the time it's used. */
+        int size() {
+            return (int)(tail.get() - head.get());
+        }
+
+        /** Consumer side: remove a message, or return null if empty. */
+        ArduinoMessage poll() {
+            long h = head.get();
+            if (h == tailCache) {
+                tailCache = tail.get();
+                if (h == tailCache) {
+                    return null;
+                }
+            }
+            int i = (int)h & mask;
+            ArduinoMessage m = slots[i];
+            slots[i] = null;
+            head.lazySet(h + 1);
+            return m;
+        }
+
+        /** Consumer side: remove a message, waiting up to timeoutNanos, or
+         *  forever if that's 0, if there is none. Returns null if the wait
+         *  times out. */
+        ArduinoMessage take(long timeoutNanos) {
+            ArduinoMessage m = poll();
+            for (int spin = 0; m == null && spin < SPINS; ++spin) {
+                m = poll();
+            }
+            for (int spin = 0; m == null && spin < YIELDS; ++spin) {
+                Thread.yield();
+                m = poll();
+            }
+            if (m != null) {
+                return m;
+            }
+            long deadline = System.nanoTime() + timeoutNanos;
+            waiter.thread = Thread.currentThread();
+            try {
+                // Check again after announcing ourselves, in case the
+                // producer offered in between.
+                while ((m = poll()) == null) {
+                    if (timeoutNanos == 0) {
+                        LockSupport.park(this);
+                    } else {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0) {
+                            break;
+                        }
+                        LockSupport.parkNanos(this, left);
+                    }
+                }
+            } finally {
+                waiter.thread = null;
+            }
+            return m;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count that any number of threads can add to without contending with
+ * each other much. The count is split into stripes, each on its own cache
+ * line, and a thread adds to the stripe picked by its id, so two threads
+ * usually hit different lines. get() adds up the stripes. Adding allocates
+ * nothing.
+ *
+ * @author Pat Tressel
+ */
+public class StripedCounter {
+    public static final String TAG = "StripedCounter";
+
+    /** Number of stripes. A power of two. */
+    private static final int STRIPES = 8;
+    /** Longs per cache line, so each stripe gets a line to itself. */
+    private static final int PAD = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    public void add(long n) {
+        cells.addAndGet(((int)Thread.currentThread().getId() & (STRIPES - 1)) * PAD, n);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /** The total so far. Adds that happen while this runs may or may not
+     *  be in it. */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; ++i) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,155 @@
+package org.jigsawrenaissance.ArduinoComm;
+
+/**
+ * A hashed timer wheel, for a fixed set of timers named by number. Time is
+ * cut into ticks, and a timer due in a given tick is kept in that tick's
+ * slot, slot = tick mod number of slots. Timers further off than one turn of
+ * the wheel share slots with nearer ones, and are passed over until their
+ * turn comes. Scheduling and cancelling are O(1); expire() looks only at the
+ * slots for the ticks that have passed.
+ *
+ * Each slot is a doubly linked list threaded through int arrays indexed by
+ * timer number, so nothing is allocated after the constructor. Not thread
+ * safe -- ArduinoOut uses one on ArduinoComm's thread.
+ *
+ * @author Pat Tressel
+ */
+public class TimerWheel {
+    public static final String TAG = "TimerWheel";
+
+    private static final int NONE = -1;
+
+    private final long tickNanos;
+    private final int mask;
+    /** First timer in each slot, or NONE. */
+    private final int[] heads;
+    // Per timer: when it's due, its slot or NONE if it isn't scheduled, and
+    // its neighbours in the slot.
+    private final long[] due;
+    private final int[] slotOf;
+    private final int[] next;
+    private final int[] prev;
+    /** Number of timers scheduled. */
+    private int scheduled = 0;
+    /** Tick that expire() has got up to. */
+    private long lastTick;
+
+    /**
+     * @param timers number of timers, numbered from 0
+     * @param slots number of slots -- rounded up to a power of two
+     * @param tickNanos length of a tick
+     */
+    public TimerWheel(int timers, int slots, long tickNanos) {
+        this.tickNanos = tickNanos;
+        int size = 1;
+        while (size < slots) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        heads = new int[size];
+        for (int i = 0; i < size; ++i) {
+            heads[i] = NONE;
+        }
+        due = new long[timers];
+        slotOf = new int[timers];
+        next = new int[timers];
+        prev = new int[timers];
+        for (int i = 0; i < timers; ++i) {
+            slotOf[i] = NONE;
+        }
+        lastTick = System.nanoTime() / tickNanos;
+    }
+
+    /** Set timer id to go off at dueNanos, by System.nanoTime(), in place
+     *  of any time it was set for before. */
+    public void schedule(int id, long dueNanos) {
+        cancel(id);
+        // A timer that's already due goes in the current slot, so the next
+        // expire() finds it.
+        long tick = Math.max(dueNanos / tickNanos, lastTick);
+        int slot = (int)tick & mask;
+        due[id] = dueNanos;
+        slotOf[id] = slot;
+        prev[id] = NONE;
+        next[id] = heads[slot];
+        if (heads[slot] != NONE) {
+            prev[heads[slot]] = id;
+        }
+        heads[slot] = id;
+        ++scheduled;
+    }
+
+    /** Stop timer id, if it's set. */
+    public void cancel(int id) {
+        int slot = slotOf[id];
+        if (slot == NONE) {
+            return;
+        }
+        if (prev[id] != NONE) {
+            next[prev[id]] = next[id];
+        } else {
+            heads[slot] = next[id];
+        }
+        if (next[id] != NONE) {
+            prev[next[id]] = prev[id];
+        }
+        slotOf[id] = NONE;
+        --scheduled;
+    }
+
+    /** True if timer id is set. */
+    public boolean isScheduled(int id) {
+        return slotOf[id] != NONE;
+    }
+
+    /**
+     * Find the timers that are due by now, and unset them.
+     *
+     * @param fired where to put their numbers -- must have room for every
+     *  timer
+     * @return the number of timers due
+     */
+    public int expire(long now, int[] fired) {
+        int n = 0;
+        long nowTick = now / tickNanos;
+        // If we've been away for more than a turn, each slot once will do.
+        long from = Math.max(lastTick, nowTick - mask);
+        for (long tick = from; tick <= nowTick && scheduled > 0; ++tick) {
+            int id = heads[(int)tick & mask];
+            while (id != NONE) {
+                int after = next[id];
+                if (due[id] <= now) {
+                    cancel(id);
+                    fired[n++] = id;
+                }
+                id = after;
+            }
+        }
+        lastTick = nowTick;
+        return n;
+    }
+
+    /**
+     * Time from now until the next timer is due, or -1 if no timers are
+     * set. If the next is more than a turn off, this is when the wheel
+     * comes round to it, which is early, but never late.
+     */
+    public long nanosToNext(long now) {
+        if (scheduled == 0) {
+            return -1;
+        }
+        for (long tick = lastTick; tick <= lastTick + mask; ++tick) {
+            long first = Long.MAX_VALUE;
+            for (int id = heads[(int)tick & mask]; id != NONE; id = next[id]) {
+                // Skip timers a turn or more off.
+                if (due[id] / tickNanos <= tick) {
+                    first = Math.min(first, due[id]);
+                }
+            }
+            if (first != Long.MAX_VALUE) {
+                return Math.max(0, first - now);
+            }
+        }
+        return (lastTick + mask + 1) * tickNanos - now;
+    }
+}